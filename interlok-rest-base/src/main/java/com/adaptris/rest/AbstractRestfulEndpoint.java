@@ -1,7 +1,13 @@
 package com.adaptris.rest;
 
+import static com.adaptris.rest.WorkflowServicesConsumer.HEADER_ETAG;
+import static com.adaptris.rest.WorkflowServicesConsumer.NOT_MODIFIED_304;
+import static com.adaptris.rest.WorkflowServicesConsumer.addResponseHeader;
+import java.util.Optional;
 import java.util.Properties;
 import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageListener;
 import com.adaptris.core.CoreException;
 import com.adaptris.core.management.MgmtComponentImpl;
@@ -13,6 +19,13 @@ import lombok.Setter;
 public abstract class AbstractRestfulEndpoint extends MgmtComponentImpl implements AdaptrisMessageListener {
   public static final String MDC_KEY = "ManagementComponent";
 
+  private static final String BOOTSTRAP_COMPRESSION_THRESHOLD_KEY = "rest.compression-threshold";
+
+  private static final String HTTP_HEADER_IF_NONE_MATCH = "http.header.If-None-Match";
+
+  // So that an entity tag from before a restart never matches one from after.
+  private static final String ETAG_PREFIX = Long.toHexString(System.currentTimeMillis());
+
   @Getter(AccessLevel.PACKAGE)
   @Setter(AccessLevel.PACKAGE)
   private transient WorkflowServicesConsumer consumer;
@@ -26,7 +39,10 @@ public abstract class AbstractRestfulEndpoint extends MgmtComponentImpl implemen
   }
 
   @Override
-  public void init(Properties config) throws Exception {}
+  public void init(Properties config) throws Exception {
+    getConsumer().setCompressionThreshold(Optional.ofNullable(config.getProperty(BOOTSTRAP_COMPRESSION_THRESHOLD_KEY))
+        .map(Long::valueOf).orElse(null));
+  }
 
   @Override
   public void start() throws Exception {
@@ -45,6 +61,40 @@ public abstract class AbstractRestfulEndpoint extends MgmtComponentImpl implemen
     }).start();
   }
 
+  /**
+   * Create a (weak) entity tag for the given version of a response.
+   */
+  protected static String entityTag(long version) {
+    return "W/\"" + ETAG_PREFIX + "-" + Long.toHexString(version) + "\"";
+  }
+
+  /**
+   * Whether the request has an {@code If-None-Match} header that matches the entity tag.
+   */
+  protected static boolean notModified(AdaptrisMessage request, String etag) {
+    String ifNoneMatch = request.getMetadataValue(HTTP_HEADER_IF_NONE_MATCH);
+    if (StringUtils.isBlank(ifNoneMatch)) {
+      return false;
+    }
+    String opaque = StringUtils.removeStart(etag, "W/");
+    for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+      String tag = StringUtils.removeStart(candidate.trim(), "W/");
+      if (tag.equals("*") || tag.equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Respond with {@code 304 Not Modified} and no body.
+   */
+  protected void sendNotModified(AdaptrisMessage message, String etag, String contentType) {
+    message.setContent("", message.getContentEncoding());
+    addResponseHeader(message, HEADER_ETAG, etag);
+    getConsumer().doResponse(message, message, contentType, NOT_MODIFIED_304);
+  }
+
   protected abstract String getAcceptedFilter();
 
   protected abstract String getDefaultUrlPath();
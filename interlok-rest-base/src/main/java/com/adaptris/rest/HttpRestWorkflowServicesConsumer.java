@@ -2,14 +2,22 @@ package com.adaptris.rest;
 
 import static com.adaptris.rest.AbstractRestfulEndpoint.MDC_KEY;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.MDC;
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
 import com.adaptris.core.AdaptrisMessageListener;
+import com.adaptris.core.MetadataElement;
 import com.adaptris.core.StandaloneConsumer;
 import com.adaptris.core.http.jetty.EmbeddedConnection;
 import com.adaptris.core.http.jetty.JettyConstants;
@@ -17,7 +25,8 @@ import com.adaptris.core.http.jetty.JettyMessageConsumer;
 import com.adaptris.core.http.jetty.JettyResponseService;
 import com.adaptris.core.http.jetty.MetadataHeaderHandler;
 import com.adaptris.core.http.jetty.MetadataParameterHandler;
-import com.adaptris.core.http.jetty.NoOpResponseHeaderProvider;
+import com.adaptris.core.http.server.ResponseHeaderProvider;
+import com.adaptris.core.lms.FileBackedMessageFactory;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
@@ -33,6 +42,12 @@ public class HttpRestWorkflowServicesConsumer extends WorkflowServicesConsumer {
 
   private static final String PARAMETER_PREFIX = "http.param.";
 
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+  private static final String GZIP = "gzip";
+
+  private static final String DEFLATE = "deflate";
+
   @Getter(AccessLevel.PACKAGE)
   @Setter(AccessLevel.PACKAGE)
   private transient JettyResponseService responseService;
@@ -41,13 +56,23 @@ public class HttpRestWorkflowServicesConsumer extends WorkflowServicesConsumer {
   @Setter(AccessLevel.PRIVATE)
   private transient String owner;
 
+  // The message factory used for requests that exceed the streaming threshold.
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient AdaptrisMessageFactory streamingMessageFactory;
+
+  // The factory chosen for the request currently being handled by this thread.
+  private transient final ThreadLocal<AdaptrisMessageFactory> requestMessageFactory = new ThreadLocal<>();
+
   public HttpRestWorkflowServicesConsumer(String ownerRef) {
     setOwner(ownerRef);
+    setStreamingMessageFactory(new FileBackedMessageFactory());
   }
 
   @Override
   protected StandaloneConsumer configureConsumer(AdaptrisMessageListener messageListener, String consumedUrlPath, String acceptedHttpMethods) {
-    setResponseService(new JettyResponseService().withResponseHeaderProvider(new NoOpResponseHeaderProvider())
+    setResponseService(new JettyResponseService()
+        .withResponseHeaderProvider(new ComponentResponseHeaders())
         .withHttpStatus("%message{httpReplyStatus}").withContentType("%message{httpReplyContentType}"));
 
     EmbeddedConnection jettyConnection = new EmbeddedConnection();
@@ -56,7 +81,17 @@ public class HttpRestWorkflowServicesConsumer extends WorkflowServicesConsumer {
       public AdaptrisMessage createMessage(HttpServletRequest request, HttpServletResponse response)
           throws IOException, ServletException {
         MDC.put(MDC_KEY, getOwner());
-        return super.createMessage(request, response);
+        requestMessageFactory.set(selectMessageFactory(request));
+        try {
+          return super.createMessage(request, response);
+        } finally {
+          requestMessageFactory.remove();
+        }
+      }
+
+      @Override
+      public AdaptrisMessageFactory getMessageFactory() {
+        return ObjectUtils.defaultIfNull(requestMessageFactory.get(), super.getMessageFactory());
       }
     };
 
@@ -69,10 +104,27 @@ public class HttpRestWorkflowServicesConsumer extends WorkflowServicesConsumer {
     return new StandaloneConsumer(jettyConnection, messageConsumer);
   }
 
+  // returns null if the request should be buffered using the default message factory.
+  AdaptrisMessageFactory selectMessageFactory(HttpServletRequest request) {
+    Long threshold = getStreamingThreshold();
+    // Only a batch is read as a stream; anything else is translated into a String for the workflow,
+    // so spooling it to disk would just cost us the I/O as well.
+    if (threshold == null || !StringUtils.startsWithIgnoreCase(request.getContentType(), CONTENT_TYPE_NDJSON)) {
+      return null;
+    }
+    long contentLength = request.getContentLengthLong();
+    // chunked batches could be any size, so those are always streamed.
+    if (contentLength < 0 || contentLength > threshold) {
+      return getStreamingMessageFactory();
+    }
+    return null;
+  }
+
   @Override
-  protected void doResponse(AdaptrisMessage originalMessage, AdaptrisMessage processedMessage,
+  protected void doResponse(AdaptrisMessage originalMessage, AdaptrisMessage reply,
       String contentType, int httpStatus) {
     try {
+      AdaptrisMessage processedMessage = compress(originalMessage, reply);
       processedMessage.addObjectHeader(JettyConstants.JETTY_WRAPPER,
           originalMessage.getObjectHeaders().get(JettyConstants.JETTY_WRAPPER));
       processedMessage.addMetadata(METADATA_STATUS, String.valueOf(httpStatus));
@@ -84,9 +136,93 @@ public class HttpRestWorkflowServicesConsumer extends WorkflowServicesConsumer {
     }
   }
 
+  // Compress the reply as it's copied into a new message, so it never has to be held in memory.
+  AdaptrisMessage compress(AdaptrisMessage originalMessage, AdaptrisMessage reply) throws IOException {
+    Long threshold = getCompressionThreshold();
+    if (threshold == null || getResponseHeader(reply, HEADER_CONTENT_ENCODING) != null) {
+      return reply;
+    }
+    addResponseHeader(reply, HEADER_VARY, vary(getResponseHeader(reply, HEADER_VARY)));
+    String encoding = selectEncoding(originalMessage.getMetadataValue(HEADER_PREFIX + ACCEPT_ENCODING));
+    if (encoding == null || reply.getSize() < threshold) {
+      return reply;
+    }
+    AdaptrisMessage compressed = reply.getFactory().newMessage();
+    compressed.setMetadata(reply.getMetadata());
+    try (InputStream in = reply.getInputStream();
+        OutputStream out = GZIP.equals(encoding) ? new GZIPOutputStream(compressed.getOutputStream())
+            : new DeflaterOutputStream(compressed.getOutputStream())) {
+      IOUtils.copy(in, out);
+    }
+    addResponseHeader(compressed, HEADER_CONTENT_ENCODING, encoding);
+    return compressed;
+  }
+
+  // Add Accept-Encoding to whatever the response already varies by.
+  private static String vary(String existing) {
+    if (StringUtils.isBlank(existing)) {
+      return ACCEPT_ENCODING;
+    }
+    for (String item : StringUtils.split(existing, ',')) {
+      if (ACCEPT_ENCODING.equalsIgnoreCase(item.trim()) || "*".equals(item.trim())) {
+        return existing;
+      }
+    }
+    return existing + ", " + ACCEPT_ENCODING;
+  }
+
+  // Pick gzip or deflate, whichever the client prefers (gzip if it has no preference); null if neither.
+  static String selectEncoding(String acceptEncoding) {
+    if (StringUtils.isBlank(acceptEncoding)) {
+      return null;
+    }
+    String result = null;
+    double best = 0;
+    for (String item : StringUtils.split(acceptEncoding, ',')) {
+      String coding = StringUtils.substringBefore(item, ";").trim();
+      double quality = quality(item);
+      if (quality > best || quality == best && GZIP.equalsIgnoreCase(coding) && result != null) {
+        if (GZIP.equalsIgnoreCase(coding) || "*".equals(coding)) {
+          result = GZIP;
+          best = quality;
+        } else if (DEFLATE.equalsIgnoreCase(coding)) {
+          result = DEFLATE;
+          best = quality;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static double quality(String item) {
+    String q = StringUtils.substringAfter(item, "q=").trim();
+    if (q.isEmpty()) {
+      return 1;
+    }
+    try {
+      return Double.parseDouble(q);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
   @Override
   public void doErrorResponse(AdaptrisMessage message, Exception e, int httpStatus) {
     message.setContent(ExceptionUtils.getStackTrace(e), message.getContentEncoding());
     doResponse(message, message, CONTENT_TYPE_DEFAULT, httpStatus);
   }
+
+  // Only the headers that the components asked for; never the rest of the metadata, which could
+  // have come back from a workflow.
+  static class ComponentResponseHeaders implements ResponseHeaderProvider<HttpServletResponse> {
+    @Override
+    public HttpServletResponse addHeaders(AdaptrisMessage msg, HttpServletResponse target) {
+      for (MetadataElement element : msg.getMetadata()) {
+        if (element.getKey().startsWith(RESPONSE_HEADER_PREFIX)) {
+          target.addHeader(element.getKey().substring(RESPONSE_HEADER_PREFIX.length()), element.getValue());
+        }
+      }
+      return target;
+    }
+  }
 }
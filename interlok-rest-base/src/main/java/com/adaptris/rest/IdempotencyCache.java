@@ -0,0 +1,131 @@
+package com.adaptris.rest;
+
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_CONFLICT;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+
+/**
+ * Remembers the response to recent requests, keyed on an idempotency key supplied by the client.
+ * <p>
+ * The first request for a key is the owner, and must {@link Claim#complete(Object)} or
+ * {@link Claim#fail(Throwable)} its claim whatever happens; any duplicates that arrive in the
+ * meantime wait (for a limited time) for the owner rather than processing the request again. Only
+ * successful responses are remembered, a failure allows the next duplicate to try again.
+ * </p>
+ * <p>
+ * Entries expire after a fixed time, and the oldest entries are evicted once the cache is full.
+ * </p>
+ */
+final class IdempotencyCache<T> {
+
+  private final long ttlNanos;
+  @Getter
+  private final int maxEntries;
+
+  // Insertion order == expiry order, since the TTL is fixed; guarded by this.
+  private final Map<String, Entry<T>> entries = new LinkedHashMap<>();
+
+  @Getter
+  private final AtomicLong hits = new AtomicLong();
+  @Getter
+  private final AtomicLong misses = new AtomicLong();
+  @Getter
+  private final AtomicLong evictions = new AtomicLong();
+
+  IdempotencyCache(long ttlMs, int maxEntries) {
+    ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    this.maxEntries = maxEntries;
+  }
+
+  synchronized Claim claim(String key) {
+    long now = System.nanoTime();
+    evictExpired(now);
+    Entry<T> entry = entries.get(key);
+    if (entry != null) {
+      hits.incrementAndGet();
+      return new Claim(key, entry, false);
+    }
+    misses.incrementAndGet();
+    entry = new Entry<>(now + ttlNanos);
+    entries.put(key, entry);
+    Iterator<Entry<T>> eldest = entries.values().iterator();
+    while (entries.size() > maxEntries) {
+      eldest.next();
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+    return new Claim(key, entry, true);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private void evictExpired(long now) {
+    for (Iterator<Entry<T>> itr = entries.values().iterator(); itr.hasNext();) {
+      if (now - itr.next().expires < 0) {
+        break;
+      }
+      itr.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private synchronized void remove(String key, Entry<T> entry) {
+    entries.remove(key, entry);
+  }
+
+  private static class Entry<T> {
+    private final long expires;
+    private final CompletableFuture<T> response = new CompletableFuture<>();
+
+    private Entry(long expires) {
+      this.expires = expires;
+    }
+  }
+
+  final class Claim {
+    private final String key;
+    private final Entry<T> entry;
+    @Getter
+    private final boolean owner;
+
+    private Claim(String key, Entry<T> entry, boolean owner) {
+      this.key = key;
+      this.entry = entry;
+      this.owner = owner;
+    }
+
+    /**
+     * Wait for the owner's response.
+     *
+     * @throws RequestRejectedException with a 409 if the owner is still going after the timeout.
+     * @throws Exception the exception that the owner failed with.
+     */
+    T await(long timeoutMs) throws Exception {
+      try {
+        return entry.response.get(timeoutMs, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      } catch (TimeoutException e) {
+        throw new RequestRejectedException("The original request for " + key + " is still in progress", ERROR_CONFLICT);
+      }
+    }
+
+    void complete(T response) {
+      entry.response.complete(response);
+    }
+
+    void fail(Throwable e) {
+      remove(key, entry);
+      entry.response.completeExceptionally(e);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.adaptris.rest;
+
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_READY;
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_TOO_MANY_REQUESTS;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+
+/**
+ * Limits the number of requests in flight, both in total and for each workflow.
+ * <p>
+ * If adaptive, then each workflow's limit starts at the configured maximum, and is halved
+ * whenever a request fails or takes longer than the latency target; it then creeps back up by
+ * one for every "limit" requests that succeed in time (AIMD). The global limit is always fixed.
+ * </p>
+ */
+final class InFlightLimiter {
+
+  private static final double DECREASE_FACTOR = 0.5;
+
+  // 0 or less means unlimited.
+  @Getter
+  private final int globalLimit;
+  @Getter
+  private final int workflowLimit;
+  private final boolean adaptive;
+  private final long latencyTargetNanos;
+
+  private final AtomicInteger globalInFlight = new AtomicInteger();
+  private final Map<String, WorkflowLimit> workflows = new ConcurrentHashMap<>();
+
+  @Getter
+  private final AtomicLong globalRejections = new AtomicLong();
+  @Getter
+  private final AtomicLong workflowRejections = new AtomicLong();
+
+  InFlightLimiter(int globalLimit, int workflowLimit, boolean adaptive, long latencyTargetMs) {
+    this.globalLimit = globalLimit;
+    this.workflowLimit = workflowLimit;
+    this.adaptive = adaptive && workflowLimit > 0;
+    latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+  }
+
+  /**
+   * Acquire a permit for the workflow, which must be released once the request has finished.
+   *
+   * @throws RequestRejectedException if either limit has been reached.
+   */
+  Permit acquire(String workflow) throws RequestRejectedException {
+    if (!tryIncrement(globalInFlight, globalLimit)) {
+      globalRejections.incrementAndGet();
+      throw new RequestRejectedException("Too many requests in flight", ERROR_NOT_READY);
+    }
+    WorkflowLimit limit = null;
+    if (workflowLimit > 0) {
+      limit = workflows.computeIfAbsent(workflow, k -> new WorkflowLimit(workflowLimit));
+      if (!tryIncrement(limit.inFlight, limit.current())) {
+        globalInFlight.decrementAndGet();
+        workflowRejections.incrementAndGet();
+        throw new RequestRejectedException("Too many requests in flight for " + workflow, ERROR_TOO_MANY_REQUESTS);
+      }
+    }
+    return new Permit(limit, System.nanoTime());
+  }
+
+  int getInFlight() {
+    return globalInFlight.get();
+  }
+
+  private static boolean tryIncrement(AtomicInteger counter, int limit) {
+    if (limit <= 0) {
+      counter.incrementAndGet();
+      return true;
+    }
+    while (true) {
+      int current = counter.get();
+      if (current >= limit) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  final class Permit {
+    private final WorkflowLimit limit;
+    private final long started;
+
+    private Permit(WorkflowLimit limit, long started) {
+      this.limit = limit;
+      this.started = started;
+    }
+
+    void release(boolean success) {
+      globalInFlight.decrementAndGet();
+      if (limit != null) {
+        limit.inFlight.decrementAndGet();
+        if (adaptive) {
+          limit.adjust(success && System.nanoTime() - started <= latencyTargetNanos);
+        }
+      }
+    }
+  }
+
+  private final class WorkflowLimit {
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+
+    private WorkflowLimit(int initial) {
+      limit = initial;
+    }
+
+    private int current() {
+      return (int) limit;
+    }
+
+    // Racy, but near enough; the limit is only ever a guide.
+    private void adjust(boolean good) {
+      double current = limit;
+      if (good) {
+        limit = Math.min(workflowLimit, current + 1 / current);
+      } else {
+        limit = Math.max(1, current * DECREASE_FACTOR);
+      }
+    }
+  }
+}
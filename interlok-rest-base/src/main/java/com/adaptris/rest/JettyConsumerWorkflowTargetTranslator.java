@@ -1,40 +1,136 @@
 package com.adaptris.rest;
 
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.CoreException;
 import com.adaptris.interlok.client.MessageTarget;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 
 @NoArgsConstructor
 public class JettyConsumerWorkflowTargetTranslator implements WorkflowTargetTranslator {
-  
+
   /**
    * The metadata item that contains the full rest path given by the user
-   * 
+   *
    * For example it could be "/workflow-services/myAdapter/myChannel/myWorkflow"
    */
   private static final String PATH_KEY = "jettyURI";
 
+  /**
+   * The metadata item that will contain anything after the workflow in the rest path, if
+   * {@link #isAllowPathSuffix()} is true.
+   */
+  public static final String PATH_SUFFIX_KEY = "workflowPathSuffix";
+
+  private static final char SEPARATOR = '/';
+
+  /**
+   * Whether to allow additional path segments after the workflow.
+   * <p>
+   * If true, then "/workflow-services/myAdapter/myChannel/myWorkflow/orders/1" will be routed to
+   * "myWorkflow" and "orders/1" is made available as {@value #PATH_SUFFIX_KEY} metadata; otherwise
+   * the request is rejected.
+   * </p>
+   */
+  @Getter
+  @Setter
+  private boolean allowPathSuffix;
+
+  // adapter/channel/workflow -> route, null until we've been told about the workflows.
+  private volatile Map<String, Route> routes;
+
   @Override
   public MessageTarget translateTarget(AdaptrisMessage message) throws CoreException {
-    String metadataValue = message.getMetadataValue(PATH_KEY);
-    if(metadataValue ==  null)
+    String path = message.getMetadataValue(PATH_KEY);
+    if(path ==  null)
       return null;
-    else {
-      String[] pathItems = metadataValue.split("/");
-      if(pathItems.length == 5) {  // We expect 5 items like the example above.
-        MessageTarget result = new MessageTarget()
-            .withAdapter(pathItems[2])
-            .withChannel(pathItems[3])
-            .withWorkflow(pathItems[4]);
-        
-        return result;
-      } else if(pathItems.length == 2) { // request is
-        return null;
-      } else 
-        throw new CoreException("Could not determine your target workflow.");
-        
+    // Skip the leading separator and the root path ("/workflow-services/")
+    int start = path.indexOf(SEPARATOR, path.indexOf(SEPARATOR) + 1) + 1;
+    if (start == 0 || start == path.length()) { // request is for the definition
+      return null;
+    }
+    int channelStart = path.indexOf(SEPARATOR, start) + 1;
+    int workflowStart = channelStart == 0 ? 0 : path.indexOf(SEPARATOR, channelStart) + 1;
+    if (workflowStart == 0) {
+      throw new CoreException("Could not determine your target workflow.");
+    }
+    int workflowEnd = path.indexOf(SEPARATOR, workflowStart);
+    if (workflowEnd == -1) {
+      workflowEnd = path.length();
+    }
+    boolean hasSuffix = workflowEnd < path.length() - 1;
+    if (hasSuffix && !isAllowPathSuffix() || workflowStart == workflowEnd || channelStart - 1 == start
+        || workflowStart - 1 == channelStart) {
+      throw new CoreException("Could not determine your target workflow.");
+    }
+    String adapter = decode(path.substring(start, channelStart - 1));
+    String channel = decode(path.substring(channelStart, workflowStart - 1));
+    String workflow = decode(path.substring(workflowStart, workflowEnd));
+
+    Map<String, Route> knownRoutes = routes;
+    Route route;
+    if (knownRoutes == null) {
+      route = new Route(adapter, channel, workflow);
+    } else {
+      route = knownRoutes.get(routeKey(adapter, channel, workflow));
+    }
+    if (route == null) {
+      throw new WorkflowNotFoundException("No workflow at " + path);
+    }
+    if (hasSuffix) {
+      message.addMessageHeader(PATH_SUFFIX_KEY, path.substring(workflowEnd + 1));
+    }
+    // A MessageTarget can be changed by whoever has it, so every request gets its own.
+    return route.toTarget();
+  }
+
+  @Override
+  public void setWorkflowTargets(Collection<MessageTarget> targets) {
+    if (targets == null) {
+      routes = null;
+      return;
+    }
+    Map<String, Route> newRoutes = new HashMap<>();
+    for (MessageTarget target : targets) {
+      newRoutes.put(routeKey(target.getAdapter(), target.getChannel(), target.getWorkflow()),
+          new Route(target.getAdapter(), target.getChannel(), target.getWorkflow()));
+    }
+    routes = Collections.unmodifiableMap(newRoutes);
+  }
+
+  private static String routeKey(String adapter, String channel, String workflow) {
+    return adapter + SEPARATOR + channel + SEPARATOR + workflow;
+  }
+
+  private static final class Route {
+    private final String adapter;
+    private final String channel;
+    private final String workflow;
+
+    private Route(String adapter, String channel, String workflow) {
+      this.adapter = adapter;
+      this.channel = channel;
+      this.workflow = workflow;
+    }
+
+    private MessageTarget toTarget() {
+      return new MessageTarget().withAdapter(adapter).withChannel(channel).withWorkflow(workflow);
+    }
+  }
+
+  // Only pay for decoding if there's something to decode; '+' is a literal in a path.
+  private static String decode(String segment) {
+    if (segment.indexOf('%') == -1) {
+      return segment;
     }
+    return URLDecoder.decode(segment.replace("+", "%2B"), StandardCharsets.UTF_8);
   }
 
 }
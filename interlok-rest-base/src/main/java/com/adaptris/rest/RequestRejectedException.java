@@ -0,0 +1,31 @@
+package com.adaptris.rest;
+
+import com.adaptris.core.CoreException;
+import lombok.Getter;
+
+/**
+ * Thrown when a request is shed because too many are already in flight.
+ * <p>
+ * Shedding load needs to be cheap, so no stack trace is captured.
+ * </p>
+ */
+public class RequestRejectedException extends CoreException {
+
+  private static final long serialVersionUID = 2021071502L;
+
+  /**
+   * The HTTP status that should be returned to the client.
+   */
+  @Getter
+  private final int httpStatus;
+
+  public RequestRejectedException(String message, int httpStatus) {
+    super(message);
+    this.httpStatus = httpStatus;
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
@@ -0,0 +1,23 @@
+package com.adaptris.rest;
+
+import com.adaptris.core.CoreException;
+
+/**
+ * Thrown when a request does not match any known workflow; reported as a 404.
+ * <p>
+ * This is an expected outcome for a bad URL, so no stack trace is captured.
+ * </p>
+ */
+public class WorkflowNotFoundException extends CoreException {
+
+  private static final long serialVersionUID = 2021071501L;
+
+  public WorkflowNotFoundException(String message) {
+    super(message);
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
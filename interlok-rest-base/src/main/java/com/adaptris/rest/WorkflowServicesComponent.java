@@ -1,35 +1,132 @@
 package com.adaptris.rest;
 
+import static com.adaptris.rest.WorkflowServicesConsumer.ACCEPTED_202;
+import static com.adaptris.rest.WorkflowServicesConsumer.CONTENT_TYPE_DEFAULT;
+import static com.adaptris.rest.WorkflowServicesConsumer.CONTENT_TYPE_NDJSON;
 import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_BAD_REQUEST;
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_GATEWAY_TIMEOUT;
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_FOUND;
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_READY;
+import static com.adaptris.rest.WorkflowServicesConsumer.HEADER_RETRY_AFTER;
+import static com.adaptris.rest.WorkflowServicesConsumer.OK_200;
+import static com.adaptris.rest.WorkflowServicesConsumer.addResponseHeader;
+import static com.adaptris.rest.WorkflowServicesConsumer.removeResponseHeaders;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
 import org.slf4j.MDC;
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageFactory;
 import com.adaptris.core.DefaultSerializableMessageTranslator;
 import com.adaptris.core.util.JmxHelper;
+import com.adaptris.core.util.ManagedThreadFactory;
 import com.adaptris.interlok.client.MessageTarget;
 import com.adaptris.interlok.client.jmx.InterlokJmxClient;
 import com.adaptris.interlok.types.SerializableMessage;
+import com.adaptris.rest.metrics.MeterRegistryBindings;
+import com.adaptris.rest.metrics.MetricBinder;
+import com.adaptris.rest.metrics.MetricProviders;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
-public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
+public class WorkflowServicesComponent extends AbstractRestfulEndpoint implements MetricBinder {
 
   private static final String WORKFLOW_OBJ_NAME ="*com.adaptris:type=Workflow,*";
 
   private static final String BOOTSTRAP_PATH_KEY = "rest.workflow-services.path";
 
+  private static final String BOOTSTRAP_STREAMING_THRESHOLD_KEY = "rest.workflow-services.streaming-threshold";
+
+  private static final String BOOTSTRAP_PATH_SUFFIX_KEY = "rest.workflow-services.allow-path-suffix";
+
+  private static final String BOOTSTRAP_EXECUTOR_THREADS_KEY = "rest.workflow-services.executor.threads";
+
+  private static final String BOOTSTRAP_EXECUTOR_QUEUE_SIZE_KEY = "rest.workflow-services.executor.queue-size";
+
+  private static final String BOOTSTRAP_EXECUTOR_TIMEOUT_KEY = "rest.workflow-services.executor.timeout-ms";
+
+  private static final String BOOTSTRAP_MAX_IN_FLIGHT_KEY = "rest.workflow-services.max-in-flight";
+
+  private static final String BOOTSTRAP_MAX_IN_FLIGHT_WORKFLOW_KEY = "rest.workflow-services.max-in-flight-per-workflow";
+
+  private static final String BOOTSTRAP_ADAPTIVE_LIMIT_KEY = "rest.workflow-services.adaptive-limit";
+
+  private static final String BOOTSTRAP_ADAPTIVE_LATENCY_KEY = "rest.workflow-services.adaptive-limit.latency-ms";
+
+  private static final String BOOTSTRAP_RETRY_AFTER_KEY = "rest.workflow-services.retry-after";
+
+  private static final String BOOTSTRAP_ACCEPTED_THREADS_KEY = "rest.workflow-services.accepted.threads";
+
+  private static final String BOOTSTRAP_ACCEPTED_QUEUE_SIZE_KEY = "rest.workflow-services.accepted.queue-size";
+
+  private static final int DEFAULT_ACCEPTED_QUEUE_SIZE = 1000;
+
+  private static final String BOOTSTRAP_IDEMPOTENCY_HEADER_KEY = "rest.workflow-services.idempotency.header";
+
+  private static final String BOOTSTRAP_IDEMPOTENCY_TTL_KEY = "rest.workflow-services.idempotency.ttl-ms";
+
+  private static final String BOOTSTRAP_IDEMPOTENCY_MAX_ENTRIES_KEY = "rest.workflow-services.idempotency.max-entries";
+
+  private static final long DEFAULT_IDEMPOTENCY_TTL_MS = 300000L;
+
+  private static final int DEFAULT_IDEMPOTENCY_MAX_ENTRIES = 10000;
+
+  private static final String BOOTSTRAP_BATCH_PARALLELISM_KEY = "rest.workflow-services.batch.parallelism";
+
+  private static final long DEFAULT_ADAPTIVE_LATENCY_MS = 1000L;
+
+  private static final String DEFAULT_RETRY_AFTER = "1";
+
+  private static final int DEFAULT_EXECUTOR_QUEUE_SIZE = 100;
+
+  private static final long DEFAULT_EXECUTOR_TIMEOUT_MS = 60000L;
+
   private static final String DEFAULT_PATH = "/workflow-services/*";
 
   private static final String ACCEPTED_FILTER = "POST,GET";
@@ -48,6 +145,10 @@ public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
 
   private static final String WORKFLOW_PLACEHOLDER = "{id}";
 
+  private static final String OBJECT_PROPERTY_TYPE = "type";
+
+  private static final String WORKFLOW_TYPE = "Workflow";
+
   private static final String OBJECT_PROPERTY_ADAPTER = "adapter";
 
   private static final String OBJECT_PROPERTY_CHANNEL = "channel";
@@ -56,6 +157,24 @@ public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
 
   private static final String HTTP_HEADER_HOST = "http.header.Host";
 
+  private static final String HTTP_HEADER_PREFIX = "http.header.";
+
+  private static final String HTTP_HEADER_CONTENT_TYPE = "http.header.Content-Type";
+
+  private static final String HTTP_HEADER_PREFER = "http.header.Prefer";
+
+  private static final String PREFER_RESPOND_ASYNC = "respond-async";
+
+  private static final String HTTP_PARAM_ASYNC = "http.param.async";
+
+  private static final String BATCH_PAYLOAD = "payload";
+
+  private static final String BATCH_METADATA = "metadata";
+
+  private static final String BATCH_STATUS = "status";
+
+  private static final String BATCH_ERROR = "error";
+
   @Getter(AccessLevel.PACKAGE)
   @Setter(AccessLevel.PACKAGE)
   private transient DefaultSerializableMessageTranslator messageTranslator;
@@ -68,20 +187,146 @@ public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
   @Setter(AccessLevel.PACKAGE)
   private transient WorkflowTargetTranslator targetTranslator;
 
+  /**
+   * The MBeanServer that the workflows are registered in; looked up once when we start.
+   */
   @Getter(AccessLevel.PACKAGE)
-  @Setter(AccessLevel.PACKAGE)
-  private transient MBeanServer interlokMBeanServer;
+  private transient volatile MBeanServer interlokMBeanServer;
 
   @Getter(AccessLevel.PACKAGE)
   @Setter(AccessLevel.PACKAGE)
   private transient AdaptrisMessageFactory messageFactory;
 
+  /**
+   * The number of threads used to process workflow requests.
+   * <p>
+   * If greater than zero, requests are handed to a bounded executor; a full queue results in a 503
+   * and a request that exceeds {@link #getExecutorTimeoutMs()} results in a 504. This is not
+   * asynchronous HTTP: the HTTP thread still waits for the result, so each request holds two threads
+   * while it is processed. What it buys is a limit on how many requests reach the workflows at once,
+   * and a bound on how long a client waits. A workflow can't be interrupted once it has the message,
+   * so a request that times out still holds its executor thread until the workflow is finished.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int executorThreads;
+
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int executorQueueSize = DEFAULT_EXECUTOR_QUEUE_SIZE;
+
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient long executorTimeoutMs = DEFAULT_EXECUTOR_TIMEOUT_MS;
+
+  /**
+   * Limits the number of workflow requests in flight, null if there are no limits.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient InFlightLimiter inFlightLimiter;
+
+  /**
+   * The number of seconds a client is told to wait before retrying a request that was shed.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient String retryAfter = DEFAULT_RETRY_AFTER;
+
+  /**
+   * The number of threads that inject accepted messages into their workflow.
+   * <p>
+   * If greater than zero, a request with a {@code Prefer: respond-async} header or an
+   * {@code async=true} query parameter is queued and immediately acknowledged with a 202 and the
+   * message id, rather than waiting for the workflow's reply. Once
+   * {@link #getAcceptedQueueSize()} messages are waiting, further requests are rejected with a 503.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int acceptedThreads;
+
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int acceptedQueueSize = DEFAULT_ACCEPTED_QUEUE_SIZE;
+
+  /**
+   * The request header that carries the client's idempotency key; null if requests are not de-duplicated.
+   * <p>
+   * A request with the same key for the same workflow as a recent successful request gets that
+   * response without the workflow being invoked again; if the first request is still in progress,
+   * then the duplicate waits for it.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient String idempotencyHeader;
+
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient IdempotencyCache<CachedResponse> idempotencyCache;
+
+  /**
+   * The number of messages from a single batch request that are processed at the same time.
+   * <p>
+   * A batch request is newline delimited JSON ({@value WorkflowServicesConsumer#CONTENT_TYPE_NDJSON}),
+   * each line being an object with "payload" and optional "metadata"; the result of each message
+   * is returned in the same order and format, with an additional "status".
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int batchParallelism = 1;
+
   @Getter(AccessLevel.PROTECTED)
   private transient final String acceptedFilter = ACCEPTED_FILTER;
 
   @Getter(AccessLevel.PROTECTED)
   private transient final String defaultUrlPath = DEFAULT_PATH;
 
+  // Bumped every time a workflow MBean is registered/unregistered, makes the cached definition stale.
+  private transient final AtomicLong workflowRegistrations = new AtomicLong();
+
+  // Pre-rendered definition-workflow.yaml fragments for each known workflow.
+  private transient final Map<ObjectName, String> workflowFragments = new ConcurrentHashMap<>();
+
+  private transient final NotificationListener registrationListener = this::handleRegistration;
+
+  private transient volatile CachedDefinition cachedDefinition;
+
+  private transient volatile KnownWorkflows knownWorkflows;
+
+  private transient volatile String definitionHeader;
+
+  private transient volatile String definitionWorkflow;
+
+  private transient volatile MBeanServer listeningTo;
+
+  // The workflowRegistrations version the target translator was last given.
+  private transient volatile long routesVersion = -1;
+
+  private transient volatile ThreadPoolExecutor executor;
+
+  private transient volatile ExecutorService batchExecutor;
+
+  private transient volatile ThreadPoolExecutor dispatcher;
+
+  private transient final AtomicLong dispatchedMessages = new AtomicLong();
+
+  private transient final AtomicLong dispatchWaitNanos = new AtomicLong();
+
+  private transient final AtomicLong droppedMessages = new AtomicLong();
+
+  private transient final AtomicLong failedDispatches = new AtomicLong();
+
+  private transient final AtomicLong rejectedRequests = new AtomicLong();
+
+  private transient final AtomicLong timedOutRequests = new AtomicLong();
+
+  // What we've registered with each registry; the meters go when the registry is closed.
+  private transient final MeterRegistryBindings<List<Meter>> meterBindings = new MeterRegistryBindings<>(List::clear);
+
 
   public WorkflowServicesComponent() {
     setTargetTranslator(new JettyConsumerWorkflowTargetTranslator());
@@ -97,12 +342,20 @@ public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
     log.debug("Processing incoming message {}", message.getUniqueId());
 
     try {
+      refreshRoutes();
       MessageTarget translateTarget = getTargetTranslator().translateTarget(message);
       if(translateTarget != null) {
-        SerializableMessage processedMessage = getJmxClient().process(translateTarget, getMessageTranslator().translate(message));
-
-        AdaptrisMessage responseMessage = getMessageTranslator().translate(processedMessage);
-        getConsumer().doResponse(message, responseMessage);
+        if (isFireAndForget(message)) {
+          enqueue(translateTarget, message);
+          AdaptrisMessage responseMessage = getMessageFactory().newMessage(message.getUniqueId());
+          getConsumer().doResponse(message, responseMessage, CONTENT_TYPE_DEFAULT, ACCEPTED_202);
+        } else if (isBatch(message)) {
+          AdaptrisMessage responseMessage = processWithLimits(translateTarget, message);
+          getConsumer().doResponse(message, responseMessage, CONTENT_TYPE_NDJSON);
+        } else {
+          AdaptrisMessage responseMessage = processIdempotent(translateTarget, message);
+          getConsumer().doResponse(message, responseMessage);
+        }
 
       } else { // we'll just return the definition.
         AdaptrisMessage responseMessage = generateDefinitionFile(message.getMetadataValue(HTTP_HEADER_HOST));
@@ -110,38 +363,311 @@ public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
       }
       onSuccess.accept(message);
 
+    } catch (WorkflowNotFoundException e) {
+      log.debug(e.getMessage());
+      getConsumer().doErrorResponse(message, e, ERROR_NOT_FOUND);
+      onFailure.accept(message);
+    } catch (RequestRejectedException e) {
+      log.debug(e.getMessage());
+      addResponseHeader(message, HEADER_RETRY_AFTER, getRetryAfter());
+      getConsumer().doErrorResponse(message, e, e.getHttpStatus());
+      onFailure.accept(message);
     } catch (Exception e) {
       log.error("Unable to inject REST message into the workflow.", e);
-      getConsumer().doErrorResponse(message, e, ERROR_BAD_REQUEST);
+      int status = errorStatus(e);
+      if (status == ERROR_NOT_READY) {
+        addResponseHeader(message, HEADER_RETRY_AFTER, getRetryAfter());
+      }
+      getConsumer().doErrorResponse(message, e, status);
       onFailure.accept(message);
     } finally {
       MDC.remove(MDC_KEY);
     }
   }
-  private AdaptrisMessage generateDefinitionFile(String host) throws IOException, MalformedObjectNameException {
-    StringBuilder definition = new StringBuilder();
 
-    AdaptrisMessage responseMessage = getMessageFactory().newMessage();
+  private AdaptrisMessage processIdempotent(MessageTarget target, AdaptrisMessage message) throws Exception {
+    IdempotencyCache<CachedResponse> cache = getIdempotencyCache();
+    String idempotencyKey = cache == null ? null : message.getMetadataValue(HTTP_HEADER_PREFIX + getIdempotencyHeader());
+    if (StringUtils.isEmpty(idempotencyKey)) {
+      return processWithLimits(target, message);
+    }
+    IdempotencyCache<CachedResponse>.Claim claim = cache.claim(target.getAdapter() + "/" + target.getChannel() + "/"
+        + target.getWorkflow() + "/" + idempotencyKey);
+    if (!claim.isOwner()) {
+      // A waiting duplicate holds a thread as much as the original does, so it counts as in flight.
+      return withPermit(target, () -> claim.await(getExecutorTimeoutMs())).toMessage(getMessageFactory());
+    }
+    try {
+      AdaptrisMessage result = processWithLimits(target, message);
+      claim.complete(new CachedResponse(result));
+      return result;
+    } catch (Throwable e) {
+      // Whatever it was, the duplicates shouldn't be left waiting for a response that never comes.
+      claim.fail(e);
+      throw e;
+    }
+  }
 
-    if(getInterlokMBeanServer() == null)
-      setInterlokMBeanServer(JmxHelper.findMBeanServer());
+  private AdaptrisMessage processWithLimits(MessageTarget target, AdaptrisMessage message) throws Exception {
+    return withPermit(target, () -> isBatch(message) ? processBatch(target, message) : processWithTimeout(target, message));
+  }
+
+  private <T> T withPermit(MessageTarget target, Callable<T> request) throws Exception {
+    InFlightLimiter limiter = getInFlightLimiter();
+    if (limiter == null) {
+      return request.call();
+    }
+    InFlightLimiter.Permit permit = limiter.acquire(target.getAdapter() + "/" + target.getChannel() + "/" + target.getWorkflow());
+    boolean success = false;
+    try {
+      T result = request.call();
+      success = true;
+      return result;
+    } finally {
+      permit.release(success);
+    }
+  }
+
+  private AdaptrisMessage processWithTimeout(MessageTarget target, AdaptrisMessage message) throws Exception {
+    ThreadPoolExecutor pool = executor;
+    if (pool == null) {
+      return process(target, message);
+    }
+    Future<AdaptrisMessage> result;
+    try {
+      result = pool.submit(() -> process(target, message));
+    } catch (RejectedExecutionException e) {
+      rejectedRequests.incrementAndGet();
+      throw e;
+    }
+    try {
+      return result.get(getExecutorTimeoutMs(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      timedOutRequests.incrementAndGet();
+      // Stops it if it's still queued; once the workflow has it, it runs to completion regardless.
+      result.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  private boolean isFireAndForget(AdaptrisMessage message) {
+    return dispatcher != null
+        && (StringUtils.containsIgnoreCase(message.getMetadataValue(HTTP_HEADER_PREFER), PREFER_RESPOND_ASYNC)
+            || BooleanUtils.toBoolean(message.getMetadataValue(HTTP_PARAM_ASYNC)));
+  }
+
+  // Translate now, so nothing from the HTTP request is needed once we've responded.
+  private void enqueue(MessageTarget target, AdaptrisMessage message) throws Exception {
+    SerializableMessage serialized = getMessageTranslator().translate(message);
+    String messageId = message.getUniqueId();
+    long queued = System.nanoTime();
+    try {
+      dispatcher.execute(() -> dispatch(target, serialized, messageId, queued));
+    } catch (RejectedExecutionException e) {
+      droppedMessages.incrementAndGet();
+      throw e;
+    }
+  }
+
+  private void dispatch(MessageTarget target, SerializableMessage message, String messageId, long queued) {
+    dispatchWaitNanos.addAndGet(System.nanoTime() - queued);
+    dispatchedMessages.incrementAndGet();
+    try {
+      getJmxClient().publish(target, message);
+    } catch (Exception e) {
+      failedDispatches.incrementAndGet();
+      log.error("Unable to inject accepted message {} into the workflow.", messageId, e);
+    }
+  }
 
-    Set<ObjectInstance> objectInstanceSet = getInterlokMBeanServer().queryMBeans(new ObjectName(WORKFLOW_OBJ_NAME), null);
-    Iterator<ObjectInstance> iterator = objectInstanceSet.iterator();
-    definition.append(readResourceAsString(DEF_HEADER, responseMessage.getContentEncoding()));
-    while (iterator.hasNext()) {
-      ObjectInstance instance = iterator.next();
-      if (instance.getClassName().equals(WORKFLOW_MANAGER)) {
+  private static boolean isBatch(AdaptrisMessage message) {
+    return StringUtils.startsWithIgnoreCase(message.getMetadataValue(HTTP_HEADER_CONTENT_TYPE), CONTENT_TYPE_NDJSON);
+  }
 
-        definition.append("\n");
-        definition.append(personalizedWorkflowDef(readResourceAsString(DEF_WORKFLOW, responseMessage.getContentEncoding()), instance.getObjectName()));
+  // Each line is processed independently; results are written in order, keeping at most
+  // batchParallelism messages in flight. Each message gets the same executor and timeout as a
+  // single request would, and in parallel we don't wait longer than that for any one of them.
+  private AdaptrisMessage processBatch(MessageTarget target, AdaptrisMessage message) throws Exception {
+    // A large batch was streamed into a file backed message, so its results should be as well.
+    AdaptrisMessage responseMessage = message.getFactory().newMessage();
+    ExecutorService pool = batchExecutor;
+    Deque<Future<JSONObject>> pending = new ArrayDeque<>();
+    Charset charset = Charset.forName(StringUtils.defaultIfBlank(message.getContentEncoding(), "UTF-8"));
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(message.getInputStream(), charset));
+        Writer writer = responseMessage.getWriter()) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (StringUtils.isBlank(line)) {
+          continue;
+        }
+        if (pool == null) {
+          writeBatchResult(writer, batchResult(target, line));
+          continue;
+        }
+        String item = line;
+        pending.add(pool.submit(() -> batchResult(target, item)));
+        if (pending.size() >= getBatchParallelism()) {
+          writeBatchResult(writer, batchResult(pending.removeFirst()));
+        }
       }
+      while (!pending.isEmpty()) {
+        writeBatchResult(writer, batchResult(pending.removeFirst()));
+      }
+    } finally {
+      pending.forEach(f -> f.cancel(true));
     }
+    return responseMessage;
+  }
 
-    responseMessage.setContent(definition.toString().replace(HOST_PLACEHOLDER, host), responseMessage.getContentEncoding());
+  private JSONObject batchResult(Future<JSONObject> pending) throws Exception {
+    try {
+      return pending.get(getExecutorTimeoutMs(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      pending.cancel(true);
+      return batchError(ERROR_GATEWAY_TIMEOUT, "No reply within " + getExecutorTimeoutMs() + "ms");
+    }
+  }
+
+  private JSONObject batchResult(MessageTarget target, String line) throws JSONException {
+    JSONObject result = new JSONObject();
+    try {
+      JSONObject request = new JSONObject(line);
+      AdaptrisMessage item = getMessageFactory().newMessage(request.optString(BATCH_PAYLOAD));
+      JSONObject metadata = request.optJSONObject(BATCH_METADATA);
+      if (metadata != null) {
+        for (Iterator<?> keys = metadata.keys(); keys.hasNext();) {
+          String key = (String) keys.next();
+          item.addMetadata(key, metadata.getString(key));
+        }
+      }
+      AdaptrisMessage reply = processWithTimeout(target, item);
+      result.put(BATCH_STATUS, OK_200);
+      result.put(BATCH_PAYLOAD, reply.getContent());
+      result.put(BATCH_METADATA, new JSONObject(reply.getMessageHeaders()));
+    } catch (Exception e) {
+      log.debug("Batch message failed: {}", e.getMessage());
+      return batchError(errorStatus(e), e.getMessage());
+    }
+    return result;
+  }
+
+  private static JSONObject batchError(int status, String error) throws JSONException {
+    JSONObject result = new JSONObject();
+    result.put(BATCH_STATUS, status);
+    result.put(BATCH_ERROR, error);
+    return result;
+  }
+
+  private static void writeBatchResult(Writer writer, JSONObject result) throws IOException {
+    writer.write(result.toString());
+    writer.write('\n');
+  }
+
+  private static int errorStatus(Exception e) {
+    if (e instanceof RejectedExecutionException) {
+      return ERROR_NOT_READY;
+    }
+    if (e instanceof TimeoutException) {
+      return ERROR_GATEWAY_TIMEOUT;
+    }
+    return ERROR_BAD_REQUEST;
+  }
+
+  private AdaptrisMessage process(MessageTarget target, AdaptrisMessage message) throws Exception {
+    SerializableMessage processedMessage = getJmxClient().process(target, getMessageTranslator().translate(message));
+    AdaptrisMessage reply = getMessageTranslator().translate(processedMessage);
+    // Only we decide on the response headers.
+    removeResponseHeaders(reply);
+    return reply;
+  }
+
+  private AdaptrisMessage generateDefinitionFile(String host) throws IOException, MalformedObjectNameException {
+    AdaptrisMessage responseMessage = getMessageFactory().newMessage();
+    CachedDefinition definition = cachedDefinition;
+    if (definition == null || definition.version != workflowRegistrations.get() || listeningTo == null) {
+      definition = buildDefinition(responseMessage.getContentEncoding());
+      cachedDefinition = definition;
+    }
+    responseMessage.setContent(definition.yaml.replace(HOST_PLACEHOLDER, host), responseMessage.getContentEncoding());
     return responseMessage;
   }
 
+  // Assemble the definition leaving {host} in place, so that it only needs to be replaced per request.
+  private CachedDefinition buildDefinition(String contentEncoding) throws IOException, MalformedObjectNameException {
+    MBeanServer mbeanServer = mbeanServer();
+    // capture the version before we query, any registration after this will just cause another rebuild.
+    long version = workflowRegistrations.get();
+    StringBuilder definition = new StringBuilder(header(contentEncoding));
+    Set<ObjectName> current = new HashSet<>();
+    for (ObjectName objectName : workflowNames(mbeanServer)) {
+      String fragment = workflowFragments.get(objectName);
+      if (fragment == null) {
+        fragment = personalizedWorkflowDef(workflowTemplate(contentEncoding), objectName);
+        workflowFragments.put(objectName, fragment);
+      }
+      current.add(objectName);
+      definition.append("\n");
+      definition.append(fragment);
+    }
+    workflowFragments.keySet().retainAll(current);
+    return new CachedDefinition(version, definition.toString());
+  }
+
+  // Only query the MBeanServer when a workflow has been registered/unregistered since the last time.
+  private List<ObjectName> workflowNames(MBeanServer mbeanServer) throws MalformedObjectNameException {
+    long version = workflowRegistrations.get();
+    KnownWorkflows known = knownWorkflows;
+    if (known == null || known.version != version || listeningTo == null) {
+      List<ObjectName> names = new ArrayList<>();
+      for (ObjectInstance instance : mbeanServer.queryMBeans(new ObjectName(WORKFLOW_OBJ_NAME), null)) {
+        if (instance.getClassName().equals(WORKFLOW_MANAGER)) {
+          names.add(instance.getObjectName());
+        }
+      }
+      known = new KnownWorkflows(version, names);
+      knownWorkflows = known;
+    }
+    return known.names;
+  }
+
+  // Give the target translator the current set of workflows, if we can tell when they change.
+  private void refreshRoutes() throws MalformedObjectNameException {
+    long version = workflowRegistrations.get();
+    if (listeningTo == null) {
+      // can't tell when workflows come and go, so don't restrict the routes.
+      getTargetTranslator().setWorkflowTargets(null);
+      routesVersion = -1;
+      return;
+    }
+    if (routesVersion == version) {
+      return;
+    }
+    List<MessageTarget> targets = new ArrayList<>();
+    for (ObjectName objectName : workflowNames(mbeanServer())) {
+      targets.add(new MessageTarget().withAdapter(objectName.getKeyProperty(OBJECT_PROPERTY_ADAPTER))
+          .withChannel(objectName.getKeyProperty(OBJECT_PROPERTY_CHANNEL))
+          .withWorkflow(objectName.getKeyProperty(OBJECT_PROPERTY_WORKFLOW)));
+    }
+    getTargetTranslator().setWorkflowTargets(targets);
+    routesVersion = version;
+  }
+
+  private String header(String contentEncoding) throws IOException {
+    if (definitionHeader == null) {
+      definitionHeader = readResourceAsString(DEF_HEADER, contentEncoding);
+    }
+    return definitionHeader;
+  }
+
+  private String workflowTemplate(String contentEncoding) throws IOException {
+    if (definitionWorkflow == null) {
+      definitionWorkflow = readResourceAsString(DEF_WORKFLOW, contentEncoding);
+    }
+    return definitionWorkflow;
+  }
+
   private String readResourceAsString(String resourceName, String contentEncoding) throws IOException {
     try (InputStream resourceBody =
         this.getClass().getClassLoader().getResourceAsStream(resourceName)) {
@@ -155,10 +681,250 @@ public class WorkflowServicesComponent extends AbstractRestfulEndpoint {
         .replace(WORKFLOW_PLACEHOLDER, objectName.getKeyProperty(OBJECT_PROPERTY_WORKFLOW));
   }
 
+  // Also listens for workflow registrations in the new MBeanServer.
+  synchronized void setInterlokMBeanServer(MBeanServer mbeanServer) {
+    interlokMBeanServer = mbeanServer;
+    listen(mbeanServer);
+  }
+
+  // Just a volatile read once we've started.
+  private MBeanServer mbeanServer() {
+    MBeanServer mbeanServer = interlokMBeanServer;
+    return mbeanServer != null ? mbeanServer : resolveMBeanServer();
+  }
+
+  private synchronized MBeanServer resolveMBeanServer() {
+    if (interlokMBeanServer == null) {
+      setInterlokMBeanServer(JmxHelper.findMBeanServer());
+    }
+    return interlokMBeanServer;
+  }
+
+  private synchronized void listen(MBeanServer mbeanServer) {
+    if (listeningTo == mbeanServer) {
+      return;
+    }
+    removeRegistrationListener();
+    workflowRegistrations.incrementAndGet();
+    try {
+      mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registrationListener, null, null);
+      listeningTo = mbeanServer;
+    } catch (Exception e) {
+      log.warn("Could not listen for workflow registrations, the definition will not be cached", e);
+    }
+  }
+
+  private synchronized void removeRegistrationListener() {
+    if (listeningTo != null) {
+      try {
+        listeningTo.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registrationListener);
+      } catch (Exception e) {
+        log.trace("Ignored exception removing registration listener {}", e.getMessage());
+      }
+      listeningTo = null;
+    }
+  }
+
+  private void handleRegistration(Notification notification, Object handback) {
+    if (notification instanceof MBeanServerNotification) {
+      ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+      if (WORKFLOW_TYPE.equals(name.getKeyProperty(OBJECT_PROPERTY_TYPE))) {
+        workflowRegistrations.incrementAndGet();
+      }
+    }
+  }
+
   @Override
   public void init(Properties config) throws Exception {
     super.init(config);
     setConfiguredUrlPath(config.getProperty(BOOTSTRAP_PATH_KEY));
+    if (getTargetTranslator() instanceof JettyConsumerWorkflowTargetTranslator) {
+      ((JettyConsumerWorkflowTargetTranslator) getTargetTranslator())
+          .setAllowPathSuffix(BooleanUtils.toBoolean(config.getProperty(BOOTSTRAP_PATH_SUFFIX_KEY)));
+    }
+    getConsumer().setStreamingThreshold(Optional.ofNullable(config.getProperty(BOOTSTRAP_STREAMING_THRESHOLD_KEY))
+        .map(Long::valueOf).orElse(null));
+    setExecutorThreads(Integer.parseInt(config.getProperty(BOOTSTRAP_EXECUTOR_THREADS_KEY, "0")));
+    setExecutorQueueSize(Integer.parseInt(config.getProperty(BOOTSTRAP_EXECUTOR_QUEUE_SIZE_KEY,
+        String.valueOf(DEFAULT_EXECUTOR_QUEUE_SIZE))));
+    setExecutorTimeoutMs(Long.parseLong(config.getProperty(BOOTSTRAP_EXECUTOR_TIMEOUT_KEY,
+        String.valueOf(DEFAULT_EXECUTOR_TIMEOUT_MS))));
+    int maxInFlight = Integer.parseInt(config.getProperty(BOOTSTRAP_MAX_IN_FLIGHT_KEY, "0"));
+    int maxInFlightPerWorkflow = Integer.parseInt(config.getProperty(BOOTSTRAP_MAX_IN_FLIGHT_WORKFLOW_KEY, "0"));
+    if (maxInFlight > 0 || maxInFlightPerWorkflow > 0) {
+      setInFlightLimiter(new InFlightLimiter(maxInFlight, maxInFlightPerWorkflow,
+          BooleanUtils.toBoolean(config.getProperty(BOOTSTRAP_ADAPTIVE_LIMIT_KEY)),
+          Long.parseLong(config.getProperty(BOOTSTRAP_ADAPTIVE_LATENCY_KEY, String.valueOf(DEFAULT_ADAPTIVE_LATENCY_MS)))));
+    }
+    setRetryAfter(config.getProperty(BOOTSTRAP_RETRY_AFTER_KEY, DEFAULT_RETRY_AFTER));
+    setIdempotencyHeader(config.getProperty(BOOTSTRAP_IDEMPOTENCY_HEADER_KEY));
+    if (getIdempotencyHeader() != null) {
+      setIdempotencyCache(new IdempotencyCache<>(
+          Long.parseLong(config.getProperty(BOOTSTRAP_IDEMPOTENCY_TTL_KEY, String.valueOf(DEFAULT_IDEMPOTENCY_TTL_MS))),
+          Integer.parseInt(config.getProperty(BOOTSTRAP_IDEMPOTENCY_MAX_ENTRIES_KEY,
+              String.valueOf(DEFAULT_IDEMPOTENCY_MAX_ENTRIES)))));
+    }
+    setBatchParallelism(Integer.parseInt(config.getProperty(BOOTSTRAP_BATCH_PARALLELISM_KEY, "1")));
+    setAcceptedThreads(Integer.parseInt(config.getProperty(BOOTSTRAP_ACCEPTED_THREADS_KEY, "0")));
+    setAcceptedQueueSize(Integer.parseInt(config.getProperty(BOOTSTRAP_ACCEPTED_QUEUE_SIZE_KEY,
+        String.valueOf(DEFAULT_ACCEPTED_QUEUE_SIZE))));
+    if (getExecutorThreads() > 0 || getInFlightLimiter() != null || getAcceptedThreads() > 0
+        || getIdempotencyCache() != null) {
+      MetricProviders.addProvider(this);
+    }
+  }
+
+  @Override
+  public void start() throws Exception {
+    listen(resolveMBeanServer());
+    if (getExecutorThreads() > 0) {
+      executor = new ThreadPoolExecutor(getExecutorThreads(), getExecutorThreads(), 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(getExecutorQueueSize()), new ManagedThreadFactory(friendlyName()));
+    }
+    if (getAcceptedThreads() > 0) {
+      dispatcher = new ThreadPoolExecutor(getAcceptedThreads(), getAcceptedThreads(), 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(getAcceptedQueueSize()), new ManagedThreadFactory(friendlyName()));
+    }
+    if (getBatchParallelism() > 1) {
+      batchExecutor = Executors.newFixedThreadPool(getBatchParallelism(), new ManagedThreadFactory(friendlyName()));
+    }
+    super.start();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    super.stop();
+    ThreadPoolExecutor pool = executor;
+    executor = null;
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+    ThreadPoolExecutor acceptedPool = dispatcher;
+    dispatcher = null;
+    if (acceptedPool != null) {
+      // Let anything already accepted carry on, but don't wait for it.
+      acceptedPool.shutdown();
+      if (!acceptedPool.getQueue().isEmpty()) {
+        log.warn("{} accepted messages still waiting to be injected", acceptedPool.getQueue().size());
+      }
+    }
+    ExecutorService batchPool = batchExecutor;
+    batchExecutor = null;
+    if (batchPool != null) {
+      batchPool.shutdownNow();
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) throws Exception {
+    // The meters read whatever is current, so each registry only needs binding once.
+    meterBindings.bind(registry, this::bind);
   }
 
+  // The pools are replaced every time we're restarted, so always go through this, rather than
+  // holding on to the pool that was there when we were bound.
+  private List<Meter> bind(MeterRegistry registry) {
+    List<Meter> meters = new ArrayList<>();
+    if (getInFlightLimiter() != null) {
+      meters.add(Gauge.builder("workflow.services.in.flight", this,
+          c -> c.getInFlightLimiter() == null ? 0 : c.getInFlightLimiter().getInFlight())
+          .description("Workflow requests currently in flight").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.shed", this,
+          c -> c.getInFlightLimiter() == null ? 0 : c.getInFlightLimiter().getGlobalRejections().get())
+          .tag("limit", "global").description("Workflow requests rejected by the in flight limits").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.shed", this,
+          c -> c.getInFlightLimiter() == null ? 0 : c.getInFlightLimiter().getWorkflowRejections().get())
+          .tag("limit", "workflow").description("Workflow requests rejected by the in flight limits").register(registry));
+    }
+    if (getIdempotencyCache() != null) {
+      meters.add(Gauge.builder("workflow.services.idempotency.size", this,
+          c -> c.getIdempotencyCache() == null ? 0 : c.getIdempotencyCache().size())
+          .description("Responses held for idempotent requests").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.idempotency.hits", this,
+          c -> c.getIdempotencyCache() == null ? 0 : c.getIdempotencyCache().getHits().get())
+          .description("Duplicate requests answered from the idempotency cache").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.idempotency.misses", this,
+          c -> c.getIdempotencyCache() == null ? 0 : c.getIdempotencyCache().getMisses().get())
+          .description("Requests with an idempotency key that were not duplicates").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.idempotency.evictions", this,
+          c -> c.getIdempotencyCache() == null ? 0 : c.getIdempotencyCache().getEvictions().get())
+          .description("Responses evicted from the idempotency cache").register(registry));
+    }
+    // We may well be bound before we're started, so go by the configuration, not the pools.
+    if (getAcceptedThreads() > 0) {
+      meters.add(Gauge.builder("workflow.services.accepted.queued", this, c -> queued(c.dispatcher))
+          .description("Accepted messages waiting to be injected").register(registry));
+      meters.add(FunctionTimer.builder("workflow.services.accepted.wait", this, c -> c.dispatchedMessages.get(),
+          c -> c.dispatchWaitNanos.get(), TimeUnit.NANOSECONDS)
+          .description("Time accepted messages spent waiting to be injected").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.accepted.dropped", droppedMessages, AtomicLong::get)
+          .description("Messages rejected because the accepted queue was full").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.accepted.failed", failedDispatches, AtomicLong::get)
+          .description("Accepted messages that could not be injected").register(registry));
+    }
+    if (getExecutorThreads() > 0) {
+      meters.add(Gauge.builder("workflow.services.executor.queued", this, c -> queued(c.executor))
+          .description("Workflow requests waiting for a thread").register(registry));
+      meters.add(Gauge.builder("workflow.services.executor.active", this,
+          c -> c.executor == null ? 0 : c.executor.getActiveCount())
+          .description("Workflow requests currently being processed").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.executor.rejected", rejectedRequests, AtomicLong::get)
+          .description("Workflow requests rejected because the queue was full").register(registry));
+      meters.add(FunctionCounter.builder("workflow.services.executor.timeouts", timedOutRequests, AtomicLong::get)
+          .description("Workflow requests that did not complete within the timeout").register(registry));
+    }
+    return meters;
+  }
+
+  private static int queued(ThreadPoolExecutor pool) {
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    super.destroy();
+    MetricProviders.removeProvider(this);
+    meterBindings.clear();
+    removeRegistrationListener();
+  }
+
+  private static class CachedDefinition {
+    private final long version;
+    private final String yaml;
+
+    private CachedDefinition(long version, String yaml) {
+      this.version = version;
+      this.yaml = yaml;
+    }
+  }
+
+  // The parts of a workflow reply needed to answer a duplicate request.
+  private static class CachedResponse {
+    private final byte[] payload;
+    private final String contentEncoding;
+    private final Map<String, String> metadata;
+
+    private CachedResponse(AdaptrisMessage reply) {
+      payload = reply.getPayload();
+      contentEncoding = reply.getContentEncoding();
+      metadata = new HashMap<>(reply.getMessageHeaders());
+    }
+
+    private AdaptrisMessage toMessage(AdaptrisMessageFactory factory) {
+      AdaptrisMessage msg = factory.newMessage(payload);
+      msg.setContentEncoding(contentEncoding);
+      metadata.forEach(msg::addMetadata);
+      return msg;
+    }
+  }
+
+  private static class KnownWorkflows {
+    private final long version;
+    private final List<ObjectName> names;
+
+    private KnownWorkflows(long version, List<ObjectName> names) {
+      this.version = version;
+      this.names = names;
+    }
+  }
 }
@@ -1,11 +1,14 @@
 package com.adaptris.rest;
 
 import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.stream.Collectors;
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageListener;
 import com.adaptris.core.ComponentLifecycle;
 import com.adaptris.core.ComponentLifecycleExtension;
 import com.adaptris.core.CoreException;
+import com.adaptris.core.MetadataElement;
 import com.adaptris.core.ServiceException;
 import com.adaptris.core.StandaloneConsumer;
 import com.adaptris.core.util.LifecycleHelper;
@@ -17,12 +20,37 @@ import lombok.Setter;
 public abstract class WorkflowServicesConsumer implements ComponentLifecycle, ComponentLifecycleExtension {
 
   public static final int OK_200 = HttpURLConnection.HTTP_OK;
+  public static final int ACCEPTED_202 = HttpURLConnection.HTTP_ACCEPTED;
+  public static final int NOT_MODIFIED_304 = HttpURLConnection.HTTP_NOT_MODIFIED;
   public static final int ERROR_BAD_REQUEST = HttpURLConnection.HTTP_BAD_REQUEST;
+  public static final int ERROR_NOT_FOUND = HttpURLConnection.HTTP_NOT_FOUND;
+  public static final int ERROR_CONFLICT = HttpURLConnection.HTTP_CONFLICT;
+  public static final int ERROR_TOO_MANY_REQUESTS = 429;
   public static final int ERROR_DEFAULT = HttpURLConnection.HTTP_INTERNAL_ERROR;
   public static final int ERROR_NOT_READY = HttpURLConnection.HTTP_UNAVAILABLE;
+  public static final int ERROR_GATEWAY_TIMEOUT = HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
 
   public static final String CONTENT_TYPE_DEFAULT = "text/plain";
   public static final String CONTENT_TYPE_JSON = "application/json";
+  public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
+  /**
+   * Metadata keys with this prefix are returned to the client as response headers, without the
+   * prefix; no other metadata ever is. Only the components set these, see
+   * {@link #addResponseHeader(AdaptrisMessage, String, String)}.
+   */
+  public static final String RESPONSE_HEADER_PREFIX = "_interlokRestResponseHeader.";
+
+  public static final String HEADER_RETRY_AFTER = "Retry-After";
+
+  public static final String HEADER_ETAG = "ETag";
+
+  /**
+   * A response that already has this header is never compressed again.
+   */
+  public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+  public static final String HEADER_VARY = "Vary";
 
   @Getter
   @Setter
@@ -48,6 +76,31 @@ public abstract class WorkflowServicesConsumer implements ComponentLifecycle, Co
   @Setter
   private String acceptedHttpMethods;
 
+  /**
+   * The batch request size (in bytes) above which the request body is streamed into a file backed
+   * message rather than being buffered in memory.
+   * <p>
+   * Only batches ({@value #CONTENT_TYPE_NDJSON}) are streamed, since each line is read from the
+   * stream and the results are written into a message from the same factory; any other request is
+   * held in memory regardless. If not specified, then everything is held in memory; batches with no
+   * declared content length are always streamed when a threshold is set.
+   * </p>
+   */
+  @Getter
+  @Setter
+  private Long streamingThreshold;
+
+  /**
+   * The response size (in bytes) at or above which the response is compressed, if the client
+   * accepts gzip or deflate.
+   * <p>
+   * If not specified, then responses are never compressed.
+   * </p>
+   */
+  @Getter
+  @Setter
+  private Long compressionThreshold;
+
   protected abstract StandaloneConsumer configureConsumer(AdaptrisMessageListener messageListener, String consumedUrlPath, String acceptedHttpMethods);
 
   protected void doResponse(AdaptrisMessage original, AdaptrisMessage processed) throws ServiceException {
@@ -89,4 +142,28 @@ public abstract class WorkflowServicesConsumer implements ComponentLifecycle, Co
   public void close() {
     LifecycleHelper.close(getStandaloneConsumer());
   }
+
+  /**
+   * Have the response to this message carry the header.
+   */
+  public static void addResponseHeader(AdaptrisMessage message, String name, String value) {
+    message.addMetadata(RESPONSE_HEADER_PREFIX + name, value);
+  }
+
+  /**
+   * The header that the response to this message will carry, or null.
+   */
+  public static String getResponseHeader(AdaptrisMessage message, String name) {
+    String key = RESPONSE_HEADER_PREFIX + name;
+    return message.headersContainsKey(key) ? message.getMetadataValue(key) : null;
+  }
+
+  /**
+   * Remove any response headers from the message, e.g. those that came back from a workflow.
+   */
+  public static void removeResponseHeaders(AdaptrisMessage message) {
+    List<String> keys = message.getMetadata().stream().map(MetadataElement::getKey)
+        .filter(key -> key.startsWith(RESPONSE_HEADER_PREFIX)).collect(Collectors.toList());
+    keys.forEach(message::removeMessageHeader);
+  }
 }
@@ -1,5 +1,6 @@
 package com.adaptris.rest;
 
+import java.util.Collection;
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.CoreException;
 import com.adaptris.interlok.client.MessageTarget;
@@ -7,5 +8,15 @@ import com.adaptris.interlok.client.MessageTarget;
 public interface WorkflowTargetTranslator {
 
   public MessageTarget translateTarget(AdaptrisMessage message) throws CoreException;
-  
+
+  /**
+   * Tell the translator which workflows currently exist.
+   * <p>
+   * Translators that support it should only return one of these targets, and throw a
+   * {@link WorkflowNotFoundException} for anything else; null means the workflows are not known.
+   * </p>
+   */
+  public default void setWorkflowTargets(Collection<MessageTarget> targets) {
+  }
+
 }
@@ -0,0 +1,72 @@
+package com.adaptris.rest.metrics;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keeps track of what a {@link MetricBinder} has bound to each {@code MeterRegistry}, so that it
+ * only binds once to each registry however often it is asked, but is still bound to every
+ * registry (e.g. both prometheus and datadog).
+ * <p>
+ * Registries are not owned by the binder, so once a registry has been closed, whatever was bound
+ * to it is released the next time that anything is bound; {@link #clear()} releases everything.
+ * </p>
+ *
+ * @param <T> whatever needs to be remembered about each registry.
+ */
+public class MeterRegistryBindings<T> {
+
+  // Registries don't override equals(), but identity is what we mean anyway; guarded by itself.
+  private final Map<MeterRegistry, T> bindings = new IdentityHashMap<>();
+  private final Consumer<T> release;
+
+  /**
+   * @param release called with whatever was bound, once it is no longer required.
+   */
+  public MeterRegistryBindings(Consumer<T> release) {
+    this.release = release;
+  }
+
+  /**
+   * Get what is bound to the registry, binding it first if required.
+   */
+  public T bind(MeterRegistry registry, Function<MeterRegistry, T> binder) {
+    synchronized (bindings) {
+      releaseClosed();
+      return bindings.computeIfAbsent(registry, binder);
+    }
+  }
+
+  public boolean isBound(MeterRegistry registry) {
+    synchronized (bindings) {
+      return bindings.containsKey(registry);
+    }
+  }
+
+  public int size() {
+    synchronized (bindings) {
+      return bindings.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (bindings) {
+      bindings.values().forEach(release);
+      bindings.clear();
+    }
+  }
+
+  private void releaseClosed() {
+    for (Iterator<Map.Entry<MeterRegistry, T>> i = bindings.entrySet().iterator(); i.hasNext();) {
+      Map.Entry<MeterRegistry, T> entry = i.next();
+      if (entry.getKey().isClosed()) {
+        release.accept(entry.getValue());
+        i.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.adaptris.rest.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The metric providers that are bound to each {@code MeterRegistry} when it is published.
+ * <p>
+ * Providers are added by each component when it is initialised and removed again when it is
+ * destroyed. The list is copy-on-write, since it is iterated far more often (on every scrape or
+ * push) than it is changed; each provider is only in the list once, however often it is added.
+ * </p>
+ */
+public class MetricProviders {
+
+  private static final List<MetricBinder> PROVIDERS = new CopyOnWriteArrayList<>();
+
+  private MetricProviders() {
+  }
+
+  public static List<MetricBinder> getProviders() {
+    return PROVIDERS;
+  }
+
+  /**
+   * Add the provider, unless that same instance has already been added.
+   */
+  public static void addProvider(MetricBinder provider) {
+    synchronized (PROVIDERS) {
+      if (PROVIDERS.stream().noneMatch(p -> p == provider)) {
+        PROVIDERS.add(provider);
+      }
+    }
+  }
+
+  public static void removeProvider(MetricBinder provider) {
+    synchronized (PROVIDERS) {
+      PROVIDERS.removeIf(p -> p == provider);
+    }
+  }
+
+}
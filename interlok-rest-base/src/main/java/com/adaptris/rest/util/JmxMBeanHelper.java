@@ -1,11 +1,24 @@
 package com.adaptris.rest.util;
 
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.JMX;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
 import com.adaptris.core.util.JmxHelper;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -20,35 +33,128 @@ public class JmxMBeanHelper {
   @Setter(AccessLevel.PRIVATE)
   private MBeanServer mBeanServer;
 
+  // Upper bound on the parsed object names; the least recently used is dropped to make room.
+  static final int MAX_CACHED = 4096;
+
   private transient final Object mbeanLock = new Object[0];
 
+  // The same handful of object names are parsed over and over again; guarded by itself.
+  private transient final Map<String, ObjectName> objectNames = new LinkedHashMap<String, ObjectName>(16, 0.75f, true) {
+    private static final long serialVersionUID = 2021072001L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ObjectName> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+
+  // Proxies only hold the server and the name, so they can be shared; even if the MBean is
+  // re-registered. They're dropped once the MBean is unregistered, so there are never more of
+  // these than there are MBeans.
+  private transient final Map<ObjectName, Map<Class<?>, Object>> proxies = new ConcurrentHashMap<>();
+
+  private transient volatile boolean watchingUnregistrations;
+
   public String getStringAttribute(String objectName, String attributeName) throws Exception {
-    return (String) mBeanServer().getAttribute(new ObjectName(objectName), attributeName);
+    return (String) mBeanServer().getAttribute(objectName(objectName), attributeName);
   }
 
   public String getStringAttributeClassName(String objectName, String attributeName) throws Exception {
-    return mBeanServer().getAttribute(new ObjectName(objectName), attributeName).getClass().getSimpleName();
+    return mBeanServer().getAttribute(objectName(objectName), attributeName).getClass().getSimpleName();
+  }
+
+  /**
+   * Fetch several attributes from an MBean in one call.
+   */
+  public MBeanAttributes getAttributes(ObjectName objectName, String... attributeNames) throws Exception {
+    AttributeList attributes = mBeanServer().getAttributes(objectName, attributeNames);
+    return new MBeanAttributes(objectName, attributes);
+  }
+
+  /**
+   * Fetch the same attributes from each of the MBeans, one call per MBean.
+   *
+   * @return the attributes keyed by object name, in the same order as {@code objectNames}.
+   */
+  public Map<ObjectName, MBeanAttributes> getAttributes(Collection<ObjectName> objectNames,
+      String... attributeNames) throws Exception {
+    MBeanServer server = mBeanServer();
+    Map<ObjectName, MBeanAttributes> result = new LinkedHashMap<>(objectNames.size() * 2);
+    for (ObjectName name : objectNames) {
+      result.put(name, new MBeanAttributes(name, server.getAttributes(name, attributeNames)));
+    }
+    return result;
   }
 
   public <T> T proxyMBean(String objectNameString, Class<T> type) throws MalformedObjectNameException {
-    return proxyMBean(new ObjectName(objectNameString), type);
+    return proxyMBean(objectName(objectNameString), type);
   }
   
   public <T> T proxyMBean(ObjectName objectName, Class<T> type) {
-    return JMX.newMBeanProxy(mBeanServer(), objectName, type, true);
+    Map<Class<?>, Object> byType = proxies.get(objectName);
+    if (byType == null) {
+      watchUnregistrations();
+      byType = proxies.computeIfAbsent(objectName, k -> new ConcurrentHashMap<>());
+    }
+    return type.cast(byType.computeIfAbsent(type, t -> JMX.newMBeanProxy(mBeanServer(), objectName, type, true)));
+  }
+
+  private void watchUnregistrations() {
+    if (watchingUnregistrations) {
+      return;
+    }
+    synchronized (mbeanLock) {
+      if (watchingUnregistrations) {
+        return;
+      }
+      MBeanServer server = mBeanServer();
+      MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+      filter.enableAllObjectNames();
+      filter.disableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+      try {
+        server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, new Unregistrations(proxies), filter, server);
+      } catch (InstanceNotFoundException e) {
+        // Every MBeanServer has a delegate, so this can't happen.
+      }
+      watchingUnregistrations = true;
+    }
   }
 
   @SuppressWarnings("unchecked")
   public Set<ObjectName> getObjectSetAttribute(String objectName, String attributeName) throws Exception {
-    return (Set<ObjectName>) mBeanServer().getAttribute(new ObjectName(objectName), attributeName);
+    return (Set<ObjectName>) mBeanServer().getAttribute(objectName(objectName), attributeName);
   }
 
   public Set<ObjectInstance> getMBeans(String objectNameQuery) throws Exception {
-    return mBeanServer().queryMBeans(new ObjectName(objectNameQuery), null);
+    return mBeanServer().queryMBeans(objectName(objectNameQuery), null);
   }
   
   public Set<ObjectName> getMBeanNames(String objectNameQuery) throws Exception {
-    return mBeanServer().queryNames(new ObjectName(objectNameQuery), null);
+    return mBeanServer().queryNames(objectName(objectNameQuery), null);
+  }
+
+  /**
+   * Parse the object name, reusing the previously parsed instance if there is one.
+   */
+  public ObjectName objectName(String objectName) throws MalformedObjectNameException {
+    synchronized (objectNames) {
+      ObjectName result = objectNames.get(objectName);
+      if (result == null) {
+        result = new ObjectName(objectName);
+        objectNames.put(objectName, result);
+      }
+      return result;
+    }
+  }
+
+  public void addNotificationListener(ObjectName objectName, NotificationListener listener,
+      NotificationFilter filter, Object handback) throws Exception {
+    mBeanServer().addNotificationListener(objectName, listener, filter, handback);
+  }
+
+  public void removeNotificationListener(ObjectName objectName, NotificationListener listener)
+      throws Exception {
+    mBeanServer().removeNotificationListener(objectName, listener);
   }
 
   @Synchronized("mbeanLock")
@@ -58,4 +164,30 @@ public class JmxMBeanHelper {
 
     return getMBeanServer();
   }
+
+  // Only holds on to the proxies weakly, since nobody tells us when they're no longer needed; once
+  // they've gone, it removes itself.
+  private static class Unregistrations implements NotificationListener {
+    private final WeakReference<Map<ObjectName, ?>> proxies;
+
+    private Unregistrations(Map<ObjectName, ?> proxies) {
+      this.proxies = new WeakReference<>(proxies);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      Map<ObjectName, ?> cache = proxies.get();
+      if (cache == null) {
+        try {
+          ((MBeanServer) handback).removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (Exception e) {
+          // It's going anyway.
+        }
+        return;
+      }
+      if (notification instanceof MBeanServerNotification) {
+        cache.remove(((MBeanServerNotification) notification).getMBeanName());
+      }
+    }
+  }
 }
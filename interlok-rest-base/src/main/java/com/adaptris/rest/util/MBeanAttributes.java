@@ -0,0 +1,58 @@
+package com.adaptris.rest.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.ObjectName;
+import lombok.Getter;
+
+/**
+ * The attributes fetched from a single MBean by {@link JmxMBeanHelper#getAttributes(ObjectName, String...)}.
+ */
+public class MBeanAttributes {
+
+  @Getter
+  private final ObjectName objectName;
+  private final Map<String, Object> values;
+
+  public MBeanAttributes(ObjectName objectName, AttributeList attributes) {
+    this.objectName = objectName;
+    Map<String, Object> map = new HashMap<>(attributes.size() * 2);
+    for (Attribute attribute : attributes.asList()) {
+      map.put(attribute.getName(), attribute.getValue());
+    }
+    values = Collections.unmodifiableMap(map);
+  }
+
+  /**
+   * Get the attribute value.
+   *
+   * @throws AttributeNotFoundException if the attribute wasn't requested, or couldn't be read.
+   */
+  public Object get(String attributeName) throws AttributeNotFoundException {
+    if (!values.containsKey(attributeName)) {
+      throw new AttributeNotFoundException(attributeName + " not available from " + objectName);
+    }
+    return values.get(attributeName);
+  }
+
+  public String getString(String attributeName) throws AttributeNotFoundException {
+    return (String) get(attributeName);
+  }
+
+  /**
+   * Get the simple class name of the attribute value; useful for things like {@code ComponentState}.
+   */
+  public String getClassName(String attributeName) throws AttributeNotFoundException {
+    return get(attributeName).getClass().getSimpleName();
+  }
+
+  @SuppressWarnings("unchecked")
+  public Set<ObjectName> getObjectSet(String attributeName) throws AttributeNotFoundException {
+    return (Set<ObjectName>) get(attributeName);
+  }
+}
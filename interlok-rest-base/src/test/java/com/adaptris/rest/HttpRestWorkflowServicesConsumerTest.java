@@ -2,10 +2,25 @@ package com.adaptris.rest;
 
 import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_DEFAULT;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.InputStream;
 import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,6 +33,7 @@ import com.adaptris.core.ServiceException;
 import com.adaptris.core.StandaloneConsumer;
 import com.adaptris.core.http.jetty.JettyMessageConsumer;
 import com.adaptris.core.http.jetty.JettyResponseService;
+import com.adaptris.core.lms.FileBackedMessageFactory;
 
 public class HttpRestWorkflowServicesConsumerTest {
 
@@ -33,6 +49,10 @@ public class HttpRestWorkflowServicesConsumerTest {
 
   @Mock private JettyResponseService mockResponseService;
 
+  @Mock private HttpServletRequest mockRequest;
+
+  @Mock private HttpServletResponse mockResponse;
+
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.openMocks(this);
@@ -64,6 +84,98 @@ public class HttpRestWorkflowServicesConsumerTest {
     assertEquals(ACCEPTED_FILTER, consumer.getMethods());
   }
 
+  @Test
+  public void testSelectMessageFactory_NoThreshold() throws Exception {
+    when(mockRequest.getContentLengthLong()).thenReturn(Long.MAX_VALUE);
+    assertNull(servicesConsumer.selectMessageFactory(mockRequest));
+  }
+
+  @Test
+  public void testSelectMessageFactory_Threshold() throws Exception {
+    servicesConsumer.setStreamingThreshold(1024L);
+    when(mockRequest.getContentType()).thenReturn("application/x-ndjson");
+    when(mockRequest.getContentLengthLong()).thenReturn(10L);
+    assertNull(servicesConsumer.selectMessageFactory(mockRequest));
+
+    when(mockRequest.getContentLengthLong()).thenReturn(2048L);
+    assertTrue(servicesConsumer.selectMessageFactory(mockRequest) instanceof FileBackedMessageFactory);
+
+    when(mockRequest.getContentLengthLong()).thenReturn(-1L);
+    assertTrue(servicesConsumer.selectMessageFactory(mockRequest) instanceof FileBackedMessageFactory);
+  }
+
+  @Test
+  public void testSelectMessageFactory_NotBatch() throws Exception {
+    servicesConsumer.setStreamingThreshold(1024L);
+    when(mockRequest.getContentType()).thenReturn("application/json");
+    when(mockRequest.getContentLengthLong()).thenReturn(2048L);
+    assertNull(servicesConsumer.selectMessageFactory(mockRequest));
+
+    when(mockRequest.getContentLengthLong()).thenReturn(-1L);
+    assertNull(servicesConsumer.selectMessageFactory(mockRequest));
+  }
+
+  @Test
+  public void testSelectEncoding() throws Exception {
+    assertNull(HttpRestWorkflowServicesConsumer.selectEncoding(null));
+    assertNull(HttpRestWorkflowServicesConsumer.selectEncoding("br, identity"));
+    assertNull(HttpRestWorkflowServicesConsumer.selectEncoding("gzip;q=0"));
+    assertEquals("gzip", HttpRestWorkflowServicesConsumer.selectEncoding("deflate, gzip, br"));
+    assertEquals("gzip", HttpRestWorkflowServicesConsumer.selectEncoding("*"));
+    assertEquals("deflate", HttpRestWorkflowServicesConsumer.selectEncoding("gzip;q=0.5, deflate"));
+  }
+
+  @Test
+  public void testCompress() throws Exception {
+    String payload = StringUtils.repeat("metric_name 1.0\n", 100);
+    processedMessage.setContent(payload, null);
+    originalMessage.addMessageHeader("http.header.Accept-Encoding", "gzip");
+
+    // Not configured.
+    assertSame(processedMessage, servicesConsumer.compress(originalMessage, processedMessage));
+
+    // Too small.
+    servicesConsumer.setCompressionThreshold(Long.MAX_VALUE);
+    assertSame(processedMessage, servicesConsumer.compress(originalMessage, processedMessage));
+    assertEquals("Accept-Encoding", WorkflowServicesConsumer.getResponseHeader(processedMessage, "Vary"));
+
+    servicesConsumer.setCompressionThreshold(1024L);
+    AdaptrisMessage compressed = servicesConsumer.compress(originalMessage, processedMessage);
+    assertNotSame(processedMessage, compressed);
+    assertEquals("gzip", WorkflowServicesConsumer.getResponseHeader(compressed, "Content-Encoding"));
+    assertTrue(compressed.getSize() < processedMessage.getSize());
+    try (InputStream in = new GZIPInputStream(compressed.getInputStream())) {
+      assertEquals(payload, IOUtils.toString(in, "UTF-8"));
+    }
+  }
+
+  @Test
+  public void testCompress_Vary() throws Exception {
+    servicesConsumer.setCompressionThreshold(Long.MAX_VALUE);
+    WorkflowServicesConsumer.addResponseHeader(processedMessage, "Vary", "Accept");
+    servicesConsumer.compress(originalMessage, processedMessage);
+    assertEquals("Accept, Accept-Encoding", WorkflowServicesConsumer.getResponseHeader(processedMessage, "Vary"));
+
+    WorkflowServicesConsumer.addResponseHeader(processedMessage, "Vary", "Accept, accept-encoding");
+    servicesConsumer.compress(originalMessage, processedMessage);
+    assertEquals("Accept, accept-encoding", WorkflowServicesConsumer.getResponseHeader(processedMessage, "Vary"));
+  }
+
+  @Test
+  public void testResponseHeaders() throws Exception {
+    processedMessage.addMessageHeader("ETag", "\"from-the-workflow\"");
+    WorkflowServicesConsumer.addResponseHeader(processedMessage, "Retry-After", "1");
+
+    new HttpRestWorkflowServicesConsumer.ComponentResponseHeaders().addHeaders(processedMessage, mockResponse);
+    verify(mockResponse).addHeader("Retry-After", "1");
+    verify(mockResponse, never()).addHeader(eq("ETag"), anyString());
+    verify(mockResponse, times(1)).addHeader(anyString(), anyString());
+
+    WorkflowServicesConsumer.removeResponseHeaders(processedMessage);
+    assertNull(WorkflowServicesConsumer.getResponseHeader(processedMessage, "Retry-After"));
+    assertEquals("\"from-the-workflow\"", processedMessage.getMetadataValue("ETag"));
+  }
+
   @Test
   public void testOkResponse() throws Exception {
     servicesConsumer.setResponseService(mockResponseService);
@@ -0,0 +1,77 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class IdempotencyCacheTest {
+
+  @Test
+  public void testDuplicateGetsResponse() throws Exception {
+    IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 10);
+    IdempotencyCache<String>.Claim first = cache.claim("key");
+    IdempotencyCache<String>.Claim second = cache.claim("key");
+    assertTrue(first.isOwner());
+    assertFalse(second.isOwner());
+    first.complete("response");
+    assertEquals("response", second.await(60000));
+    assertEquals(1, cache.getHits().get());
+    assertEquals(1, cache.getMisses().get());
+  }
+
+  @Test
+  public void testFailureAllowsRetry() throws Exception {
+    IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 10);
+    IdempotencyCache<String>.Claim first = cache.claim("key");
+    IdempotencyCache<String>.Claim second = cache.claim("key");
+    first.fail(new Exception("Expected"));
+    try {
+      second.await(60000);
+      fail();
+    } catch (Exception expected) {
+      assertEquals("Expected", expected.getMessage());
+    }
+    assertTrue(cache.claim("key").isOwner());
+  }
+
+  @Test
+  public void testAwaitTimeout() throws Exception {
+    IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 10);
+    cache.claim("key");
+    try {
+      cache.claim("key").await(10);
+      fail();
+    } catch (RequestRejectedException expected) {
+      assertEquals(WorkflowServicesConsumer.ERROR_CONFLICT, expected.getHttpStatus());
+    }
+  }
+
+  @Test
+  public void testFailWithError() throws Exception {
+    IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 10);
+    cache.claim("key").fail(new OutOfMemoryError());
+    assertTrue(cache.claim("key").isOwner());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    IdempotencyCache<String> cache = new IdempotencyCache<>(0, 10);
+    cache.claim("key").complete("response");
+    assertTrue(cache.claim("key").isOwner());
+    assertEquals(1, cache.getEvictions().get());
+  }
+
+  @Test
+  public void testMaxEntries() throws Exception {
+    IdempotencyCache<String> cache = new IdempotencyCache<>(60000, 2);
+    cache.claim("1").complete("1");
+    cache.claim("2").complete("2");
+    cache.claim("3").complete("3");
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions().get());
+    assertTrue(cache.claim("1").isOwner());
+    assertFalse(cache.claim("3").isOwner());
+  }
+}
@@ -0,0 +1,65 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class InFlightLimiterTest {
+
+  @Test
+  public void testUnlimited() throws Exception {
+    InFlightLimiter limiter = new InFlightLimiter(0, 0, false, 1000);
+    InFlightLimiter.Permit p1 = limiter.acquire("a/c/w");
+    InFlightLimiter.Permit p2 = limiter.acquire("a/c/w");
+    assertEquals(2, limiter.getInFlight());
+    p1.release(true);
+    p2.release(true);
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testGlobalLimit() throws Exception {
+    InFlightLimiter limiter = new InFlightLimiter(1, 0, false, 1000);
+    InFlightLimiter.Permit permit = limiter.acquire("a/c/w1");
+    try {
+      limiter.acquire("a/c/w2");
+      fail();
+    } catch (RequestRejectedException expected) {
+      assertEquals(WorkflowServicesConsumer.ERROR_NOT_READY, expected.getHttpStatus());
+    }
+    permit.release(true);
+    limiter.acquire("a/c/w2");
+    assertEquals(1, limiter.getGlobalRejections().get());
+  }
+
+  @Test
+  public void testWorkflowLimit() throws Exception {
+    InFlightLimiter limiter = new InFlightLimiter(0, 1, false, 1000);
+    limiter.acquire("a/c/w1");
+    limiter.acquire("a/c/w2");
+    try {
+      limiter.acquire("a/c/w1");
+      fail();
+    } catch (RequestRejectedException expected) {
+      assertEquals(WorkflowServicesConsumer.ERROR_TOO_MANY_REQUESTS, expected.getHttpStatus());
+    }
+    // the rejected request should not still count towards the global total.
+    assertEquals(2, limiter.getInFlight());
+    assertEquals(1, limiter.getWorkflowRejections().get());
+  }
+
+  @Test
+  public void testAdaptiveLimit() throws Exception {
+    InFlightLimiter limiter = new InFlightLimiter(0, 4, true, 1000);
+    // A failure halves the limit from 4 to 2.
+    limiter.acquire("a/c/w").release(false);
+    limiter.acquire("a/c/w");
+    limiter.acquire("a/c/w");
+    try {
+      limiter.acquire("a/c/w");
+      fail();
+    } catch (RequestRejectedException expected) {
+
+    }
+  }
+}
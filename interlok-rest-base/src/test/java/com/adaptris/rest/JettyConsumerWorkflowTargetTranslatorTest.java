@@ -2,7 +2,9 @@ package com.adaptris.rest;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.fail;
+import java.util.Arrays;
 import org.junit.Before;
 import org.junit.Test;
 import com.adaptris.core.AdaptrisMessage;
@@ -34,6 +36,68 @@ public class JettyConsumerWorkflowTargetTranslatorTest {
     assertEquals("myWorkflow", target.getWorkflow());
   }
 
+  @Test
+  public void testTrailingSlash() throws Exception{
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow/");
+    MessageTarget target = targetTranslator.translateTarget(message);
+
+    assertEquals("myWorkflow", target.getWorkflow());
+  }
+
+  @Test
+  public void testUrlEncodedPath() throws Exception{
+    message.addMessageHeader(PATH_KEY, "/workflow-services/my%20Adapter/my+Channel/my%2FWorkflow");
+    MessageTarget target = targetTranslator.translateTarget(message);
+
+    assertEquals("my Adapter", target.getAdapter());
+    assertEquals("my+Channel", target.getChannel());
+    assertEquals("my/Workflow", target.getWorkflow());
+  }
+
+  @Test
+  public void testPathSuffix() throws Exception{
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow/orders/1");
+    try {
+      targetTranslator.translateTarget(message);
+      fail("Path suffix should not be allowed by default.");
+    } catch (CoreException ex) {
+      // expected
+    }
+
+    targetTranslator.setAllowPathSuffix(true);
+    MessageTarget target = targetTranslator.translateTarget(message);
+
+    assertEquals("myWorkflow", target.getWorkflow());
+    assertEquals("orders/1", message.getMetadataValue(JettyConsumerWorkflowTargetTranslator.PATH_SUFFIX_KEY));
+  }
+
+  @Test
+  public void testKnownWorkflowTargets() throws Exception{
+    MessageTarget known = new MessageTarget().withAdapter("myAdapter").withChannel("myChannel").withWorkflow("myWorkflow");
+    targetTranslator.setWorkflowTargets(Arrays.asList(known));
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    MessageTarget target = targetTranslator.translateTarget(message);
+    assertEquals("myAdapter", target.getAdapter());
+    assertEquals("myChannel", target.getChannel());
+    assertEquals("myWorkflow", target.getWorkflow());
+
+    // Nobody else sees what's done to it, or to the targets we were given.
+    target.withWorkflow("changed");
+    known.withWorkflow("changed");
+    target = targetTranslator.translateTarget(message);
+    assertNotSame(known, target);
+    assertEquals("myWorkflow", target.getWorkflow());
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/otherWorkflow");
+    try {
+      targetTranslator.translateTarget(message);
+      fail("Unknown workflow should not be found.");
+    } catch (WorkflowNotFoundException ex) {
+      // expected
+    }
+  }
+
   @Test
   public void testRootReturnsNull() throws Exception{
     message.addMessageHeader(PATH_KEY, "/workflow-services/");
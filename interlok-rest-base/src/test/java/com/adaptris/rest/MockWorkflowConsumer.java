@@ -7,6 +7,7 @@ import com.adaptris.core.StandaloneConsumer;
 public class MockWorkflowConsumer extends WorkflowServicesConsumer {
 
   String payload;
+  String contentType;
   boolean isError;
   int httpStatus = -1;
 
@@ -19,6 +20,7 @@ public class MockWorkflowConsumer extends WorkflowServicesConsumer {
   protected void doResponse(AdaptrisMessage originalMessage, AdaptrisMessage processedMessage,
       String contentType, int status) {
     payload = processedMessage.getContent();
+    this.contentType = contentType;
     httpStatus = status;
   }
 
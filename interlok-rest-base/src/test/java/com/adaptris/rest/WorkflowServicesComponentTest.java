@@ -1,21 +1,31 @@
 package com.adaptris.rest;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationListener;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import com.adaptris.core.AdaptrisMessage;
@@ -25,6 +35,9 @@ import com.adaptris.core.DefaultMessageFactory;
 import com.adaptris.core.SerializableAdaptrisMessage;
 import com.adaptris.interlok.client.jmx.InterlokJmxClient;
 import com.adaptris.interlok.types.SerializableMessage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 public class WorkflowServicesComponentTest {
   
@@ -39,6 +52,8 @@ public class WorkflowServicesComponentTest {
   private static final String WORKFLOW_OBJECT_ONE = "com.adaptris:type=Workflow,adapter=MyInterlokInstance,channel=channel-1,id=standard-workflow-1";
   
   private static final String WORKFLOW_OBJECT_TWO = "com.adaptris:type=Workflow,adapter=MyInterlokInstance,channel=channel-2,id=standard-workflow-2";
+
+  private static final String WORKFLOW_OBJECT_TARGET = "com.adaptris:type=Workflow,adapter=myAdapter,channel=myChannel,id=myWorkflow";
   
   private AdaptrisMessage message;
   
@@ -74,6 +89,7 @@ public class WorkflowServicesComponentTest {
     mockReturnedWorkflows.add(new ObjectInstance(new ObjectName(WORKFLOW_OBJECT_ONE), WORKFLOW_MANAGER_CLASS));
     mockReturnedWorkflows.add(new ObjectInstance(new ObjectName(WORKFLOW_OBJECT_TWO), WORKFLOW_MANAGER_CLASS));
     mockReturnedWorkflows.add(new ObjectInstance(new ObjectName(WORKFLOW_OBJECT_TWO), NOT_WORKFLOW_MANAGER_CLASS));
+    mockReturnedWorkflows.add(new ObjectInstance(new ObjectName(WORKFLOW_OBJECT_TARGET), WORKFLOW_MANAGER_CLASS));
   }
 
   @After
@@ -84,9 +100,11 @@ public class WorkflowServicesComponentTest {
   @Test
   public void testHappyPathMessageProcessed() throws Exception {
     startComponent();
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
     
     message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
     
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
     when(mockJmxClient.process(any(), any())).thenReturn(mockSerMessage);
     
     workflowServicesComponent.onAdaptrisMessage(message);
@@ -95,6 +113,297 @@ public class WorkflowServicesComponentTest {
     verify(mockConsumer).doResponse(any(), any());
   }
 
+  @Test
+  public void testUnknownWorkflowNotFound() throws Exception {
+    startComponent();
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/unknownWorkflow");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockJmxClient, times(0)).process(any(), any());
+    verify(mockConsumer).doErrorResponse(any(), any(), eq(WorkflowServicesConsumer.ERROR_NOT_FOUND));
+  }
+
+  @Test
+  public void testAsyncMessageProcessed() throws Exception {
+    startComponent(asyncProperties("60000"));
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    when(mockJmxClient.process(any(), any())).thenReturn(mockSerMessage);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockJmxClient).process(any(), any());
+    verify(mockConsumer).doResponse(any(), any());
+  }
+
+  @Test
+  public void testAsyncMessageTimeout() throws Exception {
+    startComponent(asyncProperties("10"));
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    when(mockJmxClient.process(any(), any())).thenAnswer(invocation -> {
+      Thread.sleep(5000);
+      return mockSerMessage;
+    });
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockConsumer, times(0)).doResponse(any(), any());
+    verify(mockConsumer).doErrorResponse(any(), any(), eq(WorkflowServicesConsumer.ERROR_GATEWAY_TIMEOUT));
+  }
+
+  @Test
+  public void testWorkflowInFlightLimit() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.max-in-flight-per-workflow", "1");
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+    // Something else is already being processed by the workflow.
+    workflowServicesComponent.getInFlightLimiter().acquire("myAdapter/myChannel/myWorkflow");
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockJmxClient, times(0)).process(any(), any());
+    verify(mockConsumer).doErrorResponse(any(), any(), eq(WorkflowServicesConsumer.ERROR_TOO_MANY_REQUESTS));
+    assertEquals("1", WorkflowServicesConsumer.getResponseHeader(message, WorkflowServicesConsumer.HEADER_RETRY_AFTER));
+  }
+
+  @Test
+  public void testFireAndForget() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.accepted.threads", "1");
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Prefer", "respond-async");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockConsumer).doResponse(any(), any(), any(), eq(WorkflowServicesConsumer.ACCEPTED_202));
+    verify(mockJmxClient, timeout(5000)).publish(any(), any());
+    verify(mockJmxClient, times(0)).process(any(), any());
+  }
+
+  @Test
+  public void testIdempotentRequest() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.idempotency.header", "Idempotency-Key");
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Idempotency-Key", "1234");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    when(mockJmxClient.process(any(), any())).thenReturn(mockSerMessage);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockJmxClient, times(1)).process(any(), any());
+    verify(mockConsumer, times(2)).doResponse(any(), any());
+  }
+
+  @Test
+  public void testIdempotentRequest_StillInProgress() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.idempotency.header", "Idempotency-Key");
+    config.setProperty("rest.workflow-services.executor.timeout-ms", "10");
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+    // The original request is still being processed.
+    workflowServicesComponent.getIdempotencyCache().claim("myAdapter/myChannel/myWorkflow/1234");
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Idempotency-Key", "1234");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockJmxClient, times(0)).process(any(), any());
+    verify(mockConsumer).doErrorResponse(any(), any(), eq(WorkflowServicesConsumer.ERROR_CONFLICT));
+  }
+
+  @Test
+  public void testIdempotentRequest_WaitingIsInFlight() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.idempotency.header", "Idempotency-Key");
+    config.setProperty("rest.workflow-services.max-in-flight-per-workflow", "1");
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+    // The original request is still being processed, and has the only permit.
+    workflowServicesComponent.getIdempotencyCache().claim("myAdapter/myChannel/myWorkflow/1234");
+    workflowServicesComponent.getInFlightLimiter().acquire("myAdapter/myChannel/myWorkflow");
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Idempotency-Key", "1234");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    verify(mockConsumer).doErrorResponse(any(), any(), eq(WorkflowServicesConsumer.ERROR_TOO_MANY_REQUESTS));
+  }
+
+  @Test
+  public void testIdempotentRequest_Error() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.idempotency.header", "Idempotency-Key");
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Idempotency-Key", "1234");
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    when(mockJmxClient.process(any(), any())).thenThrow(new NoClassDefFoundError());
+
+    try {
+      workflowServicesComponent.onAdaptrisMessage(message);
+      fail();
+    } catch (NoClassDefFoundError expected) {
+    }
+    // Nobody is left waiting on it.
+    assertTrue(workflowServicesComponent.getIdempotencyCache().claim("myAdapter/myChannel/myWorkflow/1234").isOwner());
+  }
+
+  @Test
+  public void testBatchMessagesProcessed() throws Exception {
+    assertBatchProcessed(new Properties());
+  }
+
+  @Test
+  public void testBatchMessagesProcessedInParallel() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.batch.parallelism", "2");
+    assertBatchProcessed(config);
+  }
+
+  @Test
+  public void testBatchMessageTimeout() throws Exception {
+    assertBatchTimeout(asyncProperties("100"));
+  }
+
+  @Test
+  public void testBatchMessageTimeoutInParallel() throws Exception {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.batch.parallelism", "2");
+    config.setProperty("rest.workflow-services.executor.timeout-ms", "100");
+    assertBatchTimeout(config);
+  }
+
+  private void assertBatchTimeout(Properties config) throws Exception {
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Content-Type", "application/x-ndjson");
+    message.setContent("{\"payload\":\"stuck\"}\n{\"payload\":\"two\"}\n", null);
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    CountDownLatch stuck = new CountDownLatch(1);
+    when(mockJmxClient.process(any(), any())).thenAnswer(invocation -> {
+      if ("stuck".equals(invocation.<SerializableMessage>getArgument(1).getContent())) {
+        stuck.await();
+      }
+      return mockSerMessage;
+    });
+
+    try {
+      workflowServicesComponent.onAdaptrisMessage(message);
+    } finally {
+      stuck.countDown();
+    }
+
+    ArgumentCaptor<AdaptrisMessage> response = ArgumentCaptor.forClass(AdaptrisMessage.class);
+    verify(mockConsumer).doResponse(any(), response.capture(), eq(WorkflowServicesConsumer.CONTENT_TYPE_NDJSON));
+    String[] results = response.getValue().getContent().split("\n");
+    assertEquals(2, results.length);
+    assertTrue(results[0].contains("\"status\":504"));
+    assertTrue(results[1].contains("\"status\":200"));
+  }
+
+  private void assertBatchProcessed(Properties config) throws Exception {
+    startComponent(config);
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    message.addMessageHeader("http.header.Content-Type", "application/x-ndjson");
+    message.setContent("{\"payload\":\"one\",\"metadata\":{\"key\":\"value\"}}\n\n"
+        + "not json\n"
+        + "{\"payload\":\"three\"}\n", null);
+
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    when(mockJmxClient.process(any(), any())).thenReturn(mockSerMessage);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+
+    ArgumentCaptor<AdaptrisMessage> response = ArgumentCaptor.forClass(AdaptrisMessage.class);
+    verify(mockJmxClient, times(2)).process(any(), any());
+    verify(mockConsumer).doResponse(any(), response.capture(), eq(WorkflowServicesConsumer.CONTENT_TYPE_NDJSON));
+    String[] results = response.getValue().getContent().split("\n");
+    assertEquals(3, results.length);
+    assertTrue(results[0].contains("\"status\":200"));
+    assertTrue(results[1].contains("\"status\":400"));
+    assertTrue(results[2].contains("\"status\":200"));
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    MeterRegistry registry = new SimpleMeterRegistry();
+    workflowServicesComponent.init(asyncProperties("60000"));
+    // Bound before there's an executor, and more than once.
+    workflowServicesComponent.bindTo(registry);
+    workflowServicesComponent.bindTo(registry);
+    assertEquals(4, registry.getMeters().size());
+    Gauge active = registry.get("workflow.services.executor.active").gauge();
+    assertEquals(0, active.value(), 0);
+
+    // The gauges follow the executor after a restart.
+    workflowServicesComponent.start();
+    workflowServicesComponent.stop();
+    workflowServicesComponent.start();
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+    message.addMessageHeader(PATH_KEY, "/workflow-services/myAdapter/myChannel/myWorkflow");
+    when(mockMbeanServer.queryMBeans(any(), any())).thenReturn(mockReturnedWorkflows);
+    CountDownLatch processing = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    when(mockJmxClient.process(any(), any())).thenAnswer(invocation -> {
+      processing.countDown();
+      finish.await();
+      return mockSerMessage;
+    });
+    Thread request = new Thread(() -> workflowServicesComponent.onAdaptrisMessage(message));
+    request.start();
+    try {
+      assertTrue(processing.await(5, TimeUnit.SECONDS));
+      assertEquals(1, active.value(), 0);
+    } finally {
+      finish.countDown();
+      request.join(5000);
+    }
+    assertEquals(4, registry.getMeters().size());
+  }
+
   @Test
   public void testYamlDefRequest() throws Exception {
     startComponent();
@@ -126,6 +435,35 @@ public class WorkflowServicesComponentTest {
     assertTrue(returnedMessage.getContent().contains("standard-workflow-2"));
   }
 
+  @Test
+  public void testDefinitionCachedUntilWorkflowsChange() throws Exception {
+    startComponent();
+
+    message.addMessageHeader(PATH_KEY, "/workflow-services/");
+    message.addMessageHeader(HTTP_HEADER_HOST, "myHost:8080");
+    workflowServicesComponent.setInterlokMBeanServer(mockMbeanServer);
+    workflowServicesComponent.setMessageFactory(mockMessagefactory);
+
+    when(mockMessagefactory.newMessage())
+      .thenReturn(returnedMessage);
+
+    when(mockMbeanServer.queryMBeans(any(), any()))
+      .thenReturn(mockReturnedWorkflows);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+    workflowServicesComponent.onAdaptrisMessage(message);
+    verify(mockMbeanServer, times(1)).queryMBeans(any(), any());
+    assertTrue(returnedMessage.getContent().contains("myHost:8080"));
+
+    ArgumentCaptor<NotificationListener> listener = ArgumentCaptor.forClass(NotificationListener.class);
+    verify(mockMbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME), listener.capture(), any(), any());
+    listener.getValue().handleNotification(new MBeanServerNotification(MBeanServerNotification.UNREGISTRATION_NOTIFICATION,
+        MBeanServerDelegate.DELEGATE_NAME, 1, new ObjectName(WORKFLOW_OBJECT_ONE)), null);
+
+    workflowServicesComponent.onAdaptrisMessage(message);
+    verify(mockMbeanServer, times(2)).queryMBeans(any(), any());
+  }
+
   @Test
   public void testInitFails() throws Exception {
     doThrow(new CoreException("Expected"))
@@ -149,9 +487,20 @@ public class WorkflowServicesComponentTest {
   }
   
   private void startComponent() throws Exception {
-    workflowServicesComponent.init(new Properties());
+    startComponent(new Properties());
+  }
+
+  private void startComponent(Properties config) throws Exception {
+    workflowServicesComponent.init(config);
     workflowServicesComponent.start();
   }
+
+  private Properties asyncProperties(String timeout) {
+    Properties config = new Properties();
+    config.setProperty("rest.workflow-services.executor.threads", "1");
+    config.setProperty("rest.workflow-services.executor.timeout-ms", timeout);
+    return config;
+  }
   
   private void stopComponent() throws Exception {
     workflowServicesComponent.stop();
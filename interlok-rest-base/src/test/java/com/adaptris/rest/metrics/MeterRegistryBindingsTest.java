@@ -0,0 +1,63 @@
+package com.adaptris.rest.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MeterRegistryBindingsTest {
+
+  @Test
+  public void testBindOnce() throws Exception {
+    AtomicInteger binds = new AtomicInteger();
+    MeterRegistryBindings<String> bindings = new MeterRegistryBindings<>(s -> {});
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    String first = bindings.bind(registry, r -> "bound-" + binds.incrementAndGet());
+    assertSame(first, bindings.bind(registry, r -> "bound-" + binds.incrementAndGet()));
+    assertEquals(1, binds.get());
+    assertTrue(bindings.isBound(registry));
+  }
+
+  @Test
+  public void testEachRegistry() throws Exception {
+    MeterRegistryBindings<String> bindings = new MeterRegistryBindings<>(s -> {});
+    SimpleMeterRegistry one = new SimpleMeterRegistry();
+    SimpleMeterRegistry two = new SimpleMeterRegistry();
+    assertEquals("one", bindings.bind(one, r -> "one"));
+    assertEquals("two", bindings.bind(two, r -> "two"));
+    assertEquals(2, bindings.size());
+  }
+
+  @Test
+  public void testReleaseClosed() throws Exception {
+    List<String> released = new ArrayList<>();
+    MeterRegistryBindings<String> bindings = new MeterRegistryBindings<>(released::add);
+    SimpleMeterRegistry closed = new SimpleMeterRegistry();
+    bindings.bind(closed, r -> "closed");
+    closed.close();
+    // Only noticed when something is bound.
+    assertTrue(released.isEmpty());
+    bindings.bind(new SimpleMeterRegistry(), r -> "open");
+    assertEquals(1, released.size());
+    assertEquals("closed", released.get(0));
+    assertFalse(bindings.isBound(closed));
+    assertEquals(1, bindings.size());
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    List<String> released = new ArrayList<>();
+    MeterRegistryBindings<String> bindings = new MeterRegistryBindings<>(released::add);
+    bindings.bind(new SimpleMeterRegistry(), r -> "one");
+    bindings.bind(new SimpleMeterRegistry(), r -> "two");
+    bindings.clear();
+    assertEquals(2, released.size());
+    assertEquals(0, bindings.size());
+  }
+}
@@ -0,0 +1,71 @@
+package com.adaptris.rest.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import io.micrometer.core.instrument.MeterRegistry;
+
+public class MetricProvidersTest {
+
+  @After
+  public void tearDown() throws Exception {
+    MetricProviders.getProviders().clear();
+  }
+
+  @Test
+  public void testAddProvider() throws Exception {
+    MetricBinder provider = registry -> {};
+    MetricProviders.addProvider(provider);
+    MetricProviders.addProvider(provider);
+    assertEquals(1, MetricProviders.getProviders().size());
+    MetricProviders.addProvider(registry -> {});
+    assertEquals(2, MetricProviders.getProviders().size());
+  }
+
+  @Test
+  public void testAddProvider_Identity() throws Exception {
+    // Equal, but not the same.
+    MetricProviders.addProvider(new EqualProvider());
+    MetricProviders.addProvider(new EqualProvider());
+    assertEquals(2, MetricProviders.getProviders().size());
+  }
+
+  @Test
+  public void testRemoveProvider() throws Exception {
+    MetricBinder provider = registry -> {};
+    MetricProviders.addProvider(provider);
+    MetricProviders.removeProvider(provider);
+    assertTrue(MetricProviders.getProviders().isEmpty());
+    // Removing something that isn't there is fine.
+    MetricProviders.removeProvider(provider);
+  }
+
+  @Test
+  public void testIterateWhileChanging() throws Exception {
+    MetricProviders.addProvider(new EqualProvider());
+    MetricProviders.addProvider(new EqualProvider());
+    for (MetricBinder provider : MetricProviders.getProviders()) {
+      MetricProviders.removeProvider(provider);
+      MetricProviders.addProvider(new EqualProvider());
+    }
+    assertEquals(2, MetricProviders.getProviders().size());
+  }
+
+  private static class EqualProvider implements MetricBinder {
+    @Override
+    public void bindTo(MeterRegistry registry) {
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof EqualProvider;
+    }
+
+    @Override
+    public int hashCode() {
+      return 1;
+    }
+  }
+}
@@ -3,7 +3,14 @@ package com.adaptris.rest.util;
 import static com.adaptris.rest.util.DummyMBean.DUMMY_MBEAN_BASE;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import javax.management.AttributeNotFoundException;
 import javax.management.MBeanServer;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
@@ -104,4 +111,96 @@ public class JmxHelperTest {
     }
   }
 
+  @Test
+  public void testGetAttributes() throws Exception {
+    JmxMBeanHelper helper = new JmxMBeanHelper();
+    MBeanServer server = helper.mBeanServer();
+    List<ObjectName> names = new ArrayList<>();
+    List<Dummy> dummies = Arrays.asList(new Dummy(1), new Dummy(2), new Dummy(3));
+    try {
+      for (Dummy dummy : dummies) {
+        ObjectName name = ObjectName.getInstance(String.format(DUMMY_MBEAN_BASE, dummy.getUniqueId()));
+        server.registerMBean(dummy, name);
+        names.add(name);
+      }
+      Map<ObjectName, MBeanAttributes> result = helper.getAttributes(names, UID_ATTR, CHILDREN_ATTR);
+      assertEquals(names, new ArrayList<>(result.keySet()));
+      for (int i = 0; i < dummies.size(); i++) {
+        MBeanAttributes attributes = result.get(names.get(i));
+        assertEquals(dummies.get(i).getUniqueId(), attributes.getString(UID_ATTR));
+        assertEquals("String", attributes.getClassName(UID_ATTR));
+        assertEquals(i + 1, attributes.getObjectSet(CHILDREN_ATTR).size());
+      }
+    } finally {
+      for (ObjectName name : names) {
+        server.unregisterMBean(name);
+      }
+    }
+  }
+
+  @Test(expected = AttributeNotFoundException.class)
+  public void testGetAttributes_Missing() throws Exception {
+    JmxMBeanHelper helper = new JmxMBeanHelper();
+    MBeanServer server = helper.mBeanServer();
+    Dummy dummy = new Dummy(0);
+    ObjectName name = ObjectName.getInstance(String.format(DUMMY_MBEAN_BASE, dummy.getUniqueId()));
+    try {
+      server.registerMBean(dummy, name);
+      MBeanAttributes attributes = helper.getAttributes(name, UID_ATTR, "NoSuchAttribute");
+      assertEquals(dummy.getUniqueId(), attributes.getString(UID_ATTR));
+      attributes.get("NoSuchAttribute");
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  @Test
+  public void testObjectNamesAndProxiesReused() throws Exception {
+    JmxMBeanHelper helper = new JmxMBeanHelper();
+    MBeanServer server = helper.mBeanServer();
+    Dummy dummy = new Dummy(0);
+    String objectRef = String.format(DUMMY_MBEAN_BASE, dummy.getUniqueId());
+    try {
+      server.registerMBean(dummy, ObjectName.getInstance(objectRef));
+      assertSame(helper.objectName(objectRef), helper.objectName(objectRef));
+      DummyMBean proxy = helper.proxyMBean(objectRef, DummyMBean.class);
+      assertSame(proxy, helper.proxyMBean(objectRef, DummyMBean.class));
+      assertEquals(dummy.getUniqueId(), proxy.getUniqueId());
+    } finally {
+      server.unregisterMBean(ObjectName.getInstance(objectRef));
+    }
+  }
+
+  @Test
+  public void testProxiesDroppedOnUnregister() throws Exception {
+    JmxMBeanHelper helper = new JmxMBeanHelper();
+    MBeanServer server = helper.mBeanServer();
+    Dummy dummy = new Dummy(0);
+    ObjectName name = ObjectName.getInstance(String.format(DUMMY_MBEAN_BASE, dummy.getUniqueId()));
+    server.registerMBean(dummy, name);
+    DummyMBean proxy;
+    try {
+      proxy = helper.proxyMBean(name, DummyMBean.class);
+    } finally {
+      server.unregisterMBean(name);
+    }
+    server.registerMBean(dummy, name);
+    try {
+      assertNotSame(proxy, helper.proxyMBean(name, DummyMBean.class));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  @Test
+  public void testObjectNamesLeastRecentlyUsed() throws Exception {
+    JmxMBeanHelper helper = new JmxMBeanHelper();
+    ObjectName name = helper.objectName(MY_SEARCH_CRITERIA);
+    for (int i = 0; i < JmxMBeanHelper.MAX_CACHED; i++) {
+      helper.objectName("com.adaptris:type=Dummy,id=" + i);
+      // Anything that's in use stays cached, however many others there are.
+      assertSame(name, helper.objectName(MY_SEARCH_CRITERIA));
+    }
+  }
+
 }
@@ -1,8 +1,12 @@
 package com.adaptris.rest;
 import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_DEFAULT;
+import static com.adaptris.rest.WorkflowServicesConsumer.HEADER_ETAG;
+import static com.adaptris.rest.WorkflowServicesConsumer.addResponseHeader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import org.slf4j.MDC;
 import com.adaptris.core.AdaptrisMessage;
@@ -30,6 +34,17 @@ public class ClusterManagerComponent extends AbstractRestfulEndpoint {
   @Setter(AccessLevel.PACKAGE)
   private transient JmxMBeanHelper jmxMBeanHelper;
 
+  /**
+   * Shared between requests, so that we don't configure a new XStream instance every time.
+   */
+  @Setter(AccessLevel.PACKAGE)
+  private transient XStreamJsonMarshaller marshaller;
+
+  // Bumped whenever the cluster membership is different from last time.
+  private transient final AtomicLong membershipVersion = new AtomicLong();
+
+  private transient String lastMembership = "";
+
   @Getter(AccessLevel.PROTECTED)
   private transient final String defaultUrlPath = DEFAULT_PATH;
 
@@ -39,6 +54,7 @@ public class ClusterManagerComponent extends AbstractRestfulEndpoint {
   public ClusterManagerComponent () {
     super();
     setJmxMBeanHelper(new JmxMBeanHelper());
+    setMarshaller(new XStreamJsonMarshaller());
   }
 
   @Override
@@ -55,8 +71,16 @@ public class ClusterManagerComponent extends AbstractRestfulEndpoint {
           clusterInstances.add((ClusterInstance) clusterManager.getClusterInstances().get(key));
         } catch (CoreException e) {}
       });
-      String jsonString = new XStreamJsonMarshaller().marshal(clusterInstances);
-      message.setContent(jsonString, message.getContentEncoding());
+      String etag = entityTag(membershipVersion(clusterInstances));
+      if (notModified(message, etag)) {
+        sendNotModified(message, etag, HttpRestWorkflowServicesConsumer.CONTENT_TYPE_JSON);
+        onSuccess.accept(message);
+        return;
+      }
+      addResponseHeader(message, HEADER_ETAG, etag);
+      try (Writer writer = message.getWriter()) {
+        marshaller.marshal(clusterInstances, writer);
+      }
 
       getConsumer().doResponse(message, message, HttpRestWorkflowServicesConsumer.CONTENT_TYPE_JSON);
       onSuccess.accept(message);
@@ -69,6 +93,21 @@ public class ClusterManagerComponent extends AbstractRestfulEndpoint {
     }
   }
 
+  // Much cheaper than marshalling the instances, which is what we want to avoid.
+  private synchronized long membershipVersion(List<ClusterInstance> instances) {
+    StringBuilder membership = new StringBuilder();
+    for (ClusterInstance instance : instances) {
+      membership.append(instance.getUniqueId()).append('|').append(instance.getClusterUuid()).append('|')
+          .append(instance.getJmxAddress()).append('\n');
+    }
+    String current = membership.toString();
+    if (!current.equals(lastMembership)) {
+      lastMembership = current;
+      return membershipVersion.incrementAndGet();
+    }
+    return membershipVersion.get();
+  }
+
   @Override
   public void init(Properties config) throws Exception {
     super.init(config);
@@ -1,7 +1,10 @@
 package com.adaptris.rest;
 
 import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.when;
@@ -139,6 +142,30 @@ public class ClusterManagerComponentTest {
     assertTrue(instances.get(1).getJmxAddress().equals(clusterInstanceTwo.getJmxAddress()));
   }
 
+  @Test
+  public void testNotModified() throws Exception {
+    expiringMapCache.put(clusterInstanceOne.getUniqueId(), clusterInstanceOne);
+    clusterManagerComponent.onAdaptrisMessage(message);
+    assertEquals(WorkflowServicesConsumer.OK_200, testConsumer.httpStatus);
+    String etag = WorkflowServicesConsumer.getResponseHeader(message, WorkflowServicesConsumer.HEADER_ETAG);
+    assertNotNull(etag);
+
+    AdaptrisMessage conditional = DefaultMessageFactory.getDefaultInstance().newMessage();
+    conditional.addMetadata("http.header.If-None-Match", etag);
+    clusterManagerComponent.onAdaptrisMessage(conditional);
+    assertEquals(WorkflowServicesConsumer.NOT_MODIFIED_304, testConsumer.httpStatus);
+    assertEquals("", testConsumer.payload);
+
+    // Someone joined the cluster.
+    expiringMapCache.put(clusterInstanceTwo.getUniqueId(), clusterInstanceTwo);
+    conditional = DefaultMessageFactory.getDefaultInstance().newMessage();
+    conditional.addMetadata("http.header.If-None-Match", etag);
+    clusterManagerComponent.onAdaptrisMessage(conditional);
+    assertEquals(WorkflowServicesConsumer.OK_200, testConsumer.httpStatus);
+    assertNotEquals(etag, WorkflowServicesConsumer.getResponseHeader(conditional, WorkflowServicesConsumer.HEADER_ETAG));
+    assertTrue(testConsumer.payload.contains(clusterInstanceTwo.getUniqueId()));
+  }
+
   @Test
   public void testMBeansNotAvailable() throws Exception {
     doThrow(new MalformedObjectNameException("expected"))
@@ -0,0 +1,150 @@
+package com.adaptris.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import lombok.Getter;
+
+/**
+ * Keeps the last health snapshot, and keeps it up to date as things change.
+ * <p>
+ * When one of the watched MBeans sends a notification (which is how adapters, channels and
+ * workflows announce lifecycle changes), the next request applies just that change to the snapshot,
+ * if there's an {@link Updater}. Anything that changes the shape of the tree (a watched MBean being
+ * registered or unregistered), a notification from an unknown MBean, or a change that the updater
+ * can't apply (or fails to), means the next request rebuilds it instead. It is also rebuilt once it is older than
+ * the maximum age, in case a notification was missed. Concurrent requests share the one rebuild.
+ * </p>
+ */
+final class HealthStateCache<T> implements MBeanWatcher.Listener {
+
+  private final Callable<T> loader;
+  private final Updater<T> updater;
+  private final long maxAgeNanos;
+
+  // Bumped whenever we need to start again; a snapshot is only good for the generation it was built from.
+  private final AtomicLong generation = new AtomicLong();
+  // The MBeans that have changed since the snapshot was last brought up to date.
+  private final Set<ObjectName> changed = ConcurrentHashMap.newKeySet();
+  private volatile Snapshot<T> snapshot;
+
+  @Getter
+  private final AtomicLong rebuilds = new AtomicLong();
+  @Getter
+  private final AtomicLong updates = new AtomicLong();
+
+  HealthStateCache(Callable<T> loader, long maxAgeMs) {
+    this(loader, (previous, names) -> null, maxAgeMs);
+  }
+
+  HealthStateCache(Callable<T> loader, Updater<T> updater, long maxAgeMs) {
+    this.loader = loader;
+    this.updater = updater;
+    maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+  }
+
+  void clear() {
+    snapshot = null;
+    changed.clear();
+  }
+
+  T get() throws Exception {
+    Snapshot<T> current = snapshot;
+    if (isValid(current) && changed.isEmpty()) {
+      return current.value;
+    }
+    synchronized (this) {
+      current = snapshot;
+      if (isValid(current)) {
+        if (changed.isEmpty()) {
+          return current.value;
+        }
+        // Anything that changes while we're reading is left for next time.
+        List<ObjectName> names = new ArrayList<>(changed);
+        changed.removeAll(names);
+        T value = update(current.value, names);
+        if (value != null) {
+          updates.incrementAndGet();
+          snapshot = new Snapshot<>(value, current.generation, current.built);
+          return value;
+        }
+      }
+      changed.clear();
+      long gen = generation.get();
+      long built = System.nanoTime();
+      T value = loader.call();
+      rebuilds.incrementAndGet();
+      snapshot = new Snapshot<>(value, gen, built);
+      return value;
+    }
+  }
+
+  // If the update fails, then those changes are gone, so the snapshot can't be trusted until it
+  // has been rebuilt; even if this rebuild fails as well.
+  private T update(T previous, List<ObjectName> names) {
+    try {
+      return updater.update(previous, names);
+    } catch (Exception e) {
+      invalidate();
+      return null;
+    }
+  }
+
+  void invalidate() {
+    generation.incrementAndGet();
+  }
+
+  @Override
+  public void registered(ObjectName name) {
+    invalidate();
+  }
+
+  @Override
+  public void unregistered(ObjectName name) {
+    invalidate();
+  }
+
+  @Override
+  public void changed(ObjectName name, Notification notification) {
+    if (name != null) {
+      changed.add(name);
+    } else {
+      invalidate();
+    }
+  }
+
+  private boolean isValid(Snapshot<T> s) {
+    return s != null && s.generation == generation.get() && System.nanoTime() - s.built < maxAgeNanos;
+  }
+
+  /**
+   * Applies changes to a snapshot.
+   */
+  @FunctionalInterface
+  interface Updater<T> {
+    /**
+     * @param previous the snapshot, which must not be modified since it may still be in use.
+     * @param changed the MBeans that have sent a notification since.
+     * @return the new snapshot, or null if it has to be rebuilt.
+     */
+    T update(T previous, List<ObjectName> changed) throws Exception;
+  }
+
+  private static class Snapshot<T> {
+    private final T value;
+    private final long generation;
+    private final long built;
+
+    private Snapshot(T value, long generation, long built) {
+      this.value = value;
+      this.generation = generation;
+      this.built = built;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.adaptris.rest;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adaptris.rest.util.JmxMBeanHelper;
+
+/**
+ * Listens for notifications from any MBean that matches one of the watched patterns, and for those
+ * MBeans being registered or unregistered, and passes them on to each {@link Listener}.
+ * <p>
+ * Adapters, channels and workflows send a notification whenever their lifecycle changes, which is
+ * what we're really interested in. There's only ever one of these per component, however many
+ * things want to know, so that each MBean only has the one listener.
+ * </p>
+ */
+final class MBeanWatcher implements NotificationListener {
+
+  private static final Logger log = LoggerFactory.getLogger(MBeanWatcher.class);
+
+  private final JmxMBeanHelper jmxMBeanHelper;
+  private final Collection<ObjectName> watched;
+  private final Set<ObjectName> subscribed = ConcurrentHashMap.newKeySet();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  MBeanWatcher(JmxMBeanHelper helper, Collection<ObjectName> watched) {
+    jmxMBeanHelper = helper;
+    this.watched = watched;
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  void start() throws Exception {
+    jmxMBeanHelper.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, null, null);
+    for (ObjectName pattern : watched) {
+      for (ObjectName name : jmxMBeanHelper.getMBeanNames(pattern.toString())) {
+        subscribe(name);
+      }
+    }
+  }
+
+  void stop() {
+    unsubscribe(MBeanServerDelegate.DELEGATE_NAME);
+    for (ObjectName name : subscribed) {
+      unsubscribe(name);
+    }
+    subscribed.clear();
+  }
+
+  /**
+   * The MBeans we are currently listening to.
+   */
+  Set<ObjectName> subscribed() {
+    return Collections.unmodifiableSet(subscribed);
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    if (notification instanceof MBeanServerNotification) {
+      ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+      if (!isWatched(name)) {
+        return;
+      }
+      if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        subscribe(name);
+        listeners.forEach(l -> l.registered(name));
+      } else {
+        subscribed.remove(name);
+        listeners.forEach(l -> l.unregistered(name));
+      }
+      return;
+    }
+    // We subscribe with the object name as the handback, so we know who it's from.
+    ObjectName name = handback instanceof ObjectName ? (ObjectName) handback : null;
+    listeners.forEach(l -> l.changed(name, notification));
+  }
+
+  private boolean isWatched(ObjectName name) {
+    for (ObjectName pattern : watched) {
+      if (pattern.apply(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Not every MBean is a notification broadcaster; there's nothing we can do about those.
+  private void subscribe(ObjectName name) {
+    try {
+      jmxMBeanHelper.addNotificationListener(name, this, null, name);
+      subscribed.add(name);
+    } catch (Exception e) {
+      log.debug("Not listening for changes to [{}]: {}", name, e.getMessage());
+    }
+  }
+
+  private void unsubscribe(ObjectName name) {
+    try {
+      jmxMBeanHelper.removeNotificationListener(name, this);
+    } catch (Exception e) {
+      log.trace("Ignoring failure to remove listener from [{}]", name, e);
+    }
+  }
+
+  /**
+   * Told about every watched MBean; called on the thread that sent the notification, so this should
+   * be quick.
+   */
+  interface Listener {
+
+    void registered(ObjectName name);
+
+    void unregistered(ObjectName name);
+
+    /**
+     * A watched MBean has sent a notification.
+     *
+     * @param name the MBean, which may be null if not known.
+     */
+    void changed(ObjectName name, Notification notification);
+  }
+}
@@ -0,0 +1,191 @@
+package com.adaptris.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adaptris.core.util.ManagedThreadFactory;
+import com.adaptris.rest.util.JmxMBeanHelper;
+import com.adaptris.rest.util.MBeanAttributes;
+
+/**
+ * Periodically samples the profiler message counts to find workflows that are started but have
+ * stopped making progress (e.g. a stuck poller, or a deadlocked producer).
+ * <p>
+ * A workflow has stalled if its consumer has received more messages than the workflow has finished
+ * (so there is something pending), messages are still arriving, and the workflow hasn't finished
+ * anything within the window. The counts don't always line up (messages can be dropped before the
+ * workflow, or several consumers counted together), so a gap on its own isn't a stall; an idle
+ * workflow is never reported. Workflows whose consumer isn't profiled can't be judged, and are
+ * never reported. The profiler
+ * MBeans are read by attribute name, so we don't need the profiler on our classpath.
+ * </p>
+ * <p>
+ * Each sample only keeps the last counts for each workflow; the result is replaced wholesale, so
+ * asking for it costs nothing.
+ * </p>
+ */
+final class ProgressSampler {
+
+  private static final Logger log = LoggerFactory.getLogger(ProgressSampler.class);
+
+  static final String PROFILER_OBJ_TYPE_WILD = "com.adaptris:type=Profiler,*";
+
+  private static final String WORKFLOW_OBJ_BY_ID = "com.adaptris:type=Workflow,id=%s,*";
+
+  private static final String COMPONENT_TYPE_PROPERTY = "componentType";
+  private static final String CONSUMER = "consumer";
+  private static final String WORKFLOW = "workflow";
+
+  private static final String WORKFLOW_ID = "WorkflowId";
+  private static final String MESSAGE_COUNT = "MessageCount";
+  private static final String FAILED_MESSAGE_COUNT = "FailedMessageCount";
+  private static final String COMPONENT_STATE = "ComponentState";
+  private static final String STARTED = "StartedState";
+
+  private final JmxMBeanHelper jmxMBeanHelper;
+  private final long windowMs;
+  private final long sampleMs;
+  private final String threadName;
+  private final Map<String, Progress> progress = new HashMap<>();
+
+  private volatile List<String> stalled = Collections.emptyList();
+  private ScheduledExecutorService scheduler;
+
+  ProgressSampler(JmxMBeanHelper helper, long windowMs, long sampleMs, String threadName) {
+    jmxMBeanHelper = helper;
+    this.windowMs = windowMs;
+    this.sampleMs = sampleMs;
+    this.threadName = threadName;
+  }
+
+  void start() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ManagedThreadFactory(threadName));
+    scheduler.scheduleWithFixedDelay(() -> sample(System.currentTimeMillis()), 0, sampleMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    synchronized (this) {
+      progress.clear();
+    }
+    stalled = Collections.emptyList();
+  }
+
+  /**
+   * The workflows that have stalled, as of the last sample.
+   */
+  List<String> stalled() {
+    return stalled;
+  }
+
+  // Visible so that we can test without waiting for the scheduler.
+  synchronized void sample(long now) {
+    try {
+      Map<String, long[]> counts = readCounts();
+      progress.keySet().retainAll(counts.keySet());
+      List<String> candidates = new ArrayList<>();
+      for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+        long[] count = entry.getValue();
+        Progress p = progress.computeIfAbsent(entry.getKey(), k -> new Progress(count[0], count[1], now));
+        p.update(count[0], count[1], now);
+        if (p.isStalled(now - windowMs)) {
+          candidates.add(entry.getKey());
+        }
+      }
+      stalled = candidates.isEmpty() ? Collections.emptyList()
+          : Collections.unmodifiableList(onlyStarted(candidates));
+    } catch (Exception e) {
+      // Try again next time; what we had is still the best we know.
+      log.trace("Failed to sample workflow progress", e);
+    }
+  }
+
+  // workflowId -> {received, finished}
+  private Map<String, long[]> readCounts() throws Exception {
+    Set<ObjectName> names = jmxMBeanHelper.getMBeanNames(PROFILER_OBJ_TYPE_WILD);
+    Map<String, long[]> counts = new HashMap<>();
+    for (MBeanAttributes metric : jmxMBeanHelper
+        .getAttributes(names, WORKFLOW_ID, MESSAGE_COUNT, FAILED_MESSAGE_COUNT).values()) {
+      String workflowId = metric.getString(WORKFLOW_ID);
+      // No workflow means it's an event or some such, so it's not interesting.
+      if (workflowId == null) {
+        continue;
+      }
+      String type = metric.getObjectName().getKeyProperty(COMPONENT_TYPE_PROPERTY);
+      long[] count = counts.computeIfAbsent(workflowId, k -> new long[] {-1, 0});
+      if (CONSUMER.equalsIgnoreCase(type)) {
+        count[0] = Math.max(count[0], 0) + (Long) metric.get(MESSAGE_COUNT);
+      } else if (WORKFLOW.equalsIgnoreCase(type)) {
+        count[1] += (Long) metric.get(MESSAGE_COUNT) + (Long) metric.get(FAILED_MESSAGE_COUNT);
+      }
+    }
+    return counts;
+  }
+
+  // A workflow that has been stopped on purpose isn't making progress either, but that's fine.
+  private List<String> onlyStarted(List<String> workflowIds) {
+    List<String> result = new ArrayList<>(workflowIds.size());
+    for (String workflowId : workflowIds) {
+      try {
+        Set<ObjectName> workflows = jmxMBeanHelper.getMBeanNames(
+            String.format(WORKFLOW_OBJ_BY_ID, WorkflowHealthCheckComponent.quoteIfRequired(workflowId)));
+        for (MBeanAttributes workflow : jmxMBeanHelper.getAttributes(workflows, COMPONENT_STATE).values()) {
+          if (STARTED.equals(workflow.getClassName(COMPONENT_STATE))) {
+            result.add(workflowId);
+            break;
+          }
+        }
+      } catch (Exception e) {
+        log.trace("Couldn't get the state of [{}]", workflowId, e);
+      }
+    }
+    return result;
+  }
+
+  private static class Progress {
+    private long received;
+    private long finished;
+    // Nothing has arrived until we've seen the count go up.
+    private long receivedChanged = Long.MIN_VALUE;
+    private long finishedChanged;
+
+    private Progress(long received, long finished, long now) {
+      this.received = received;
+      this.finished = finished;
+      finishedChanged = now;
+    }
+
+    private void update(long received, long finished, long now) {
+      if (received != this.received) {
+        this.received = received;
+        receivedChanged = now;
+      }
+      if (finished != this.finished) {
+        this.finished = finished;
+        finishedChanged = now;
+      }
+    }
+
+    /**
+     * @return true if something is pending, something has arrived since {@code windowStart}, and
+     *         nothing has finished since then.
+     */
+    private boolean isStalled(long windowStart) {
+      // If the consumer isn't profiled, then received is -1, and nothing is ever pending.
+      return received > finished && receivedChanged > windowStart && finishedChanged <= windowStart;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package com.adaptris.rest;
+
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_READY;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.adaptris.core.util.ManagedThreadFactory;
+import com.adaptris.rest.util.JmxMBeanHelper;
+import com.adaptris.rest.util.MBeanAttributes;
+import lombok.Getter;
+
+/**
+ * Turns lifecycle notifications from adapters, channels and workflows into state change events,
+ * and hands them to each subscriber.
+ * <p>
+ * Notifications are only used as a prompt; the current state is read from the MBean, and an event
+ * is only published if it is different from the last state that we saw. This is done on a single
+ * background thread, so that we never hold up the component that sent the notification.
+ * </p>
+ * <p>
+ * Each subscriber has a bounded buffer; if it can't keep up, then the oldest events are dropped.
+ * </p>
+ * <p>
+ * If there is a {@link StateHistory} then every change is also recorded there, whether or not
+ * anyone has subscribed.
+ * </p>
+ */
+final class StateEventPublisher implements MBeanWatcher.Listener {
+
+  private static final Logger log = LoggerFactory.getLogger(StateEventPublisher.class);
+
+  private static final String UNIQUE_ID = "UniqueId";
+  private static final String COMPONENT_STATE = "ComponentState";
+
+  static final String UNREGISTERED = "Unregistered";
+
+  private final JmxMBeanHelper jmxMBeanHelper;
+  private final int bufferSize;
+  private final int maxSubscribers;
+  private final Map<ObjectName, String> lastStates = new ConcurrentHashMap<>();
+  private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+  private final AtomicLong sequence = new AtomicLong();
+  private final ExecutorService dispatcher;
+  private final StateHistory history;
+
+  @Getter
+  private final AtomicLong dropped = new AtomicLong();
+
+  StateEventPublisher(JmxMBeanHelper helper, int bufferSize, int maxSubscribers, String threadName) {
+    this(helper, bufferSize, maxSubscribers, threadName, null);
+  }
+
+  StateEventPublisher(JmxMBeanHelper helper, int bufferSize, int maxSubscribers, String threadName,
+      StateHistory history) {
+    jmxMBeanHelper = helper;
+    this.history = history;
+    this.bufferSize = bufferSize;
+    this.maxSubscribers = maxSubscribers;
+    dispatcher = Executors.newSingleThreadExecutor(new ManagedThreadFactory(threadName));
+  }
+
+  /**
+   * Read the current state of the MBeans that are already being watched.
+   * <p>
+   * What we already know about isn't an event; this is done before we return, otherwise a change
+   * that happens straight after we start would just become part of what we already know.
+   * </p>
+   */
+  void start(Collection<ObjectName> watching) {
+    for (ObjectName name : watching) {
+      refresh(name, false);
+    }
+  }
+
+  void stop() {
+    dispatcher.shutdownNow();
+    subscriptions.forEach(Subscription::close);
+    lastStates.clear();
+  }
+
+  /**
+   * Subscribe to events; the subscription must be closed when no longer required.
+   *
+   * @throws RequestRejectedException if there are already too many subscribers.
+   */
+  Subscription subscribe() throws RequestRejectedException {
+    Subscription subscription = new Subscription();
+    subscriptions.add(subscription);
+    if (subscriptions.size() > maxSubscribers) {
+      subscriptions.remove(subscription);
+      throw new RequestRejectedException("Too many event subscribers", ERROR_NOT_READY);
+    }
+    return subscription;
+  }
+
+  int subscribers() {
+    return subscriptions.size();
+  }
+
+  @Override
+  public void registered(ObjectName name) {
+    dispatcher.execute(() -> refresh(name, true));
+  }
+
+  @Override
+  public void unregistered(ObjectName name) {
+    dispatcher.execute(() -> {
+      String previous = lastStates.remove(name);
+      if (history != null) {
+        history.remove(name);
+      }
+      if (previous != null) {
+        publish(name, name.getKeyProperty("id"), UNREGISTERED, previous);
+      }
+    });
+  }
+
+  @Override
+  public void changed(ObjectName name, Notification notification) {
+    if (name != null) {
+      dispatcher.execute(() -> refresh(name, true));
+    }
+  }
+
+  private void refresh(ObjectName name, boolean publish) {
+    try {
+      MBeanAttributes attributes = jmxMBeanHelper.getAttributes(name, UNIQUE_ID, COMPONENT_STATE);
+      String state = attributes.getClassName(COMPONENT_STATE);
+      String previous = lastStates.put(name, state);
+      if (!publish) {
+        if (history != null) {
+          history.prime(name, state);
+        }
+      } else if (!state.equals(previous)) {
+        if (history != null) {
+          history.record(name, state, previous, System.currentTimeMillis());
+        }
+        publish(name, attributes.getString(UNIQUE_ID), state, previous);
+      }
+    } catch (Exception e) {
+      log.trace("Couldn't get the state of [{}]", name, e);
+    }
+  }
+
+  // Visible so that we can test without needing real lifecycle notifications.
+  void publish(ObjectName name, String id, String state, String previous) {
+    String event = toEvent(sequence.incrementAndGet(), name, id, state, previous);
+    for (Subscription subscription : subscriptions) {
+      subscription.offer(event);
+    }
+  }
+
+  private static String toEvent(long seq, ObjectName name, String id, String state, String previous) {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("type", name.getKeyProperty("type"));
+      json.put("id", id);
+      json.putOpt("adapter", name.getKeyProperty("adapter"));
+      json.putOpt("channel", name.getKeyProperty("channel"));
+      json.put("state", state);
+      json.putOpt("previous", previous);
+      json.put("timestamp", System.currentTimeMillis());
+    } catch (JSONException e) {
+      // Only thrown for non-finite numbers, which we never have.
+      throw new IllegalStateException(e);
+    }
+    return "id: " + seq + "\nevent: state\ndata: " + json + "\n\n";
+  }
+
+  final class Subscription implements AutoCloseable {
+    // Guarded by this.
+    private final Deque<String> buffer = new ArrayDeque<>();
+    private boolean closed;
+
+    private synchronized void offer(String event) {
+      if (closed) {
+        return;
+      }
+      if (buffer.size() >= bufferSize) {
+        buffer.pollFirst();
+        dropped.incrementAndGet();
+      }
+      buffer.addLast(event);
+      notifyAll();
+    }
+
+    /**
+     * Wait for events.
+     *
+     * @return the events, which is empty if there weren't any in time, or we're closed.
+     */
+    synchronized List<String> poll(long timeoutMs) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      long remaining = timeoutMs;
+      while (buffer.isEmpty() && !closed && remaining > 0) {
+        wait(remaining);
+        remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      }
+      List<String> events = new ArrayList<>(buffer);
+      buffer.clear();
+      return events;
+    }
+
+    synchronized boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      subscriptions.remove(this);
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package com.adaptris.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import javax.management.ObjectName;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Remembers the last few state transitions of each adapter, channel and workflow.
+ * <p>
+ * Each component has a fixed size ring buffer, allocated when we first see it, so recording a
+ * transition never allocates. From that we can tell how long a component has been in its current
+ * state, and how many times it has changed state within the window; a component that changes state
+ * at least {@code flapThreshold} times within the window is flapping.
+ * </p>
+ * <p>
+ * Transitions are only recorded by a single thread (see {@link StateEventPublisher}), but can be
+ * read by any request.
+ * </p>
+ */
+final class StateHistory {
+
+  private static final String STARTED = "StartedState";
+
+  private final int capacity;
+  private final long windowMs;
+  private final int flapThreshold;
+  private final Map<ObjectName, Ring> rings = new ConcurrentHashMap<>();
+
+  StateHistory(int capacity, long windowMs, int flapThreshold) {
+    this.capacity = capacity;
+    this.windowMs = windowMs;
+    this.flapThreshold = flapThreshold;
+  }
+
+  /**
+   * Record something that was already there when we started; we don't know how long it has been in
+   * this state, so it's treated as stable.
+   */
+  void prime(ObjectName name, String state) {
+    rings.computeIfAbsent(name, n -> new Ring(state, 0));
+  }
+
+  void record(ObjectName name, String state, String previous, long timestamp) {
+    Ring ring = rings.computeIfAbsent(name, n -> new Ring(previous, timestamp));
+    ring.add(state, previous, timestamp);
+  }
+
+  void remove(ObjectName name) {
+    rings.remove(name);
+  }
+
+  /**
+   * Find the first started component that hasn't been started for at least {@code stableMs}, or is
+   * flapping.
+   *
+   * @param filter which components to look at.
+   * @return its id, or null if everything is stable.
+   */
+  String firstUnstable(Predicate<ObjectName> filter, long stableMs, long now) {
+    for (Map.Entry<ObjectName, Ring> entry : rings.entrySet()) {
+      if (!filter.test(entry.getKey())) {
+        continue;
+      }
+      Ring ring = entry.getValue();
+      synchronized (ring) {
+        if (STARTED.equals(ring.current) && (now - ring.since < stableMs || ring.isFlapping(now))) {
+          return entry.getKey().getKeyProperty("id");
+        }
+      }
+    }
+    return null;
+  }
+
+  boolean isFlapping(ObjectName name, long now) {
+    Ring ring = rings.get(name);
+    if (ring == null) {
+      return false;
+    }
+    synchronized (ring) {
+      return ring.isFlapping(now);
+    }
+  }
+
+  int transitions(ObjectName name, long now) {
+    Ring ring = rings.get(name);
+    if (ring == null) {
+      return 0;
+    }
+    synchronized (ring) {
+      return ring.transitions(now);
+    }
+  }
+
+  /**
+   * Report on every matching component as a JSON array.
+   */
+  String toJson(Predicate<ObjectName> filter, long now) throws JSONException {
+    JSONArray result = new JSONArray();
+    for (Map.Entry<ObjectName, Ring> entry : rings.entrySet()) {
+      if (filter.test(entry.getKey())) {
+        result.put(toJson(entry.getKey(), entry.getValue(), now));
+      }
+    }
+    return result.toString();
+  }
+
+  private JSONObject toJson(ObjectName name, Ring ring, long now) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("type", name.getKeyProperty("type"));
+    json.put("id", name.getKeyProperty("id"));
+    json.putOpt("adapter", name.getKeyProperty("adapter"));
+    json.putOpt("channel", name.getKeyProperty("channel"));
+    synchronized (ring) {
+      int transitions = ring.transitions(now);
+      json.putOpt("state", ring.current);
+      if (ring.since > 0) {
+        json.put("since", ring.since);
+      }
+      json.put("transitions", transitions);
+      json.put("transitionsPerMinute", windowMs > 0 ? transitions * 60000.0 / windowMs : 0);
+      json.put("flapping", transitions >= flapThreshold);
+      JSONArray history = new JSONArray();
+      for (int i = ring.count; i > 0; i--) {
+        int index = ring.index(i);
+        JSONObject transition = new JSONObject();
+        transition.put("timestamp", ring.timestamps[index]);
+        transition.putOpt("previous", ring.previous[index]);
+        transition.put("state", ring.states[index]);
+        if (ring.durations[index] >= 0) {
+          transition.put("previousDurationMs", ring.durations[index]);
+        }
+        history.put(transition);
+      }
+      json.put("history", history);
+    }
+    return json;
+  }
+
+  // Anything in the scope (adapter[/channel[/workflow]]), including everything underneath it.
+  static Predicate<ObjectName> inScope(List<String> scope) {
+    if (scope.isEmpty()) {
+      return name -> true;
+    }
+    List<String> path = new ArrayList<>(scope);
+    return name -> {
+      List<String> own = new ArrayList<>(3);
+      switch (String.valueOf(name.getKeyProperty("type"))) {
+        case "Workflow":
+          own.add(name.getKeyProperty("adapter"));
+          own.add(name.getKeyProperty("channel"));
+          break;
+        case "Channel":
+          own.add(name.getKeyProperty("adapter"));
+          break;
+        default:
+      }
+      own.add(name.getKeyProperty("id"));
+      return own.size() >= path.size() && own.subList(0, path.size()).equals(path);
+    };
+  }
+
+  // Guarded by itself.
+  private final class Ring {
+    private final long[] timestamps = new long[capacity];
+    private final String[] states = new String[capacity];
+    private final String[] previous = new String[capacity];
+    // How long we were in the previous state, or -1 if we don't know.
+    private final long[] durations = new long[capacity];
+    private int next;
+    private int count;
+    private String current;
+    private long since;
+
+    private Ring(String current, long since) {
+      this.current = current;
+      this.since = since;
+    }
+
+    private synchronized void add(String state, String from, long timestamp) {
+      timestamps[next] = timestamp;
+      states[next] = state;
+      previous[next] = from;
+      durations[next] = from != null && since > 0 ? timestamp - since : -1;
+      next = (next + 1) % capacity;
+      count = Math.min(count + 1, capacity);
+      current = state;
+      since = timestamp;
+    }
+
+    // The i'th most recent entry, starting from 1.
+    private int index(int i) {
+      return (next - i + capacity) % capacity;
+    }
+
+    private int transitions(long now) {
+      int result = 0;
+      for (int i = 1; i <= count && now - timestamps[index(i)] < windowMs; i++) {
+        result++;
+      }
+      return result;
+    }
+
+    private boolean isFlapping(long now) {
+      return transitions(now) >= flapThreshold;
+    }
+  }
+}
@@ -2,36 +2,65 @@ package com.adaptris.rest;
 
 import static com.adaptris.rest.WorkflowServicesConsumer.CONTENT_TYPE_JSON;
 import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_DEFAULT;
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_FOUND;
 import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_READY;
+import static com.adaptris.rest.WorkflowServicesConsumer.HEADER_ETAG;
 import static com.adaptris.rest.WorkflowServicesConsumer.OK_200;
+import static com.adaptris.rest.WorkflowServicesConsumer.addResponseHeader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import javax.management.InstanceNotFoundException;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.MDC;
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.ClosedState;
 import com.adaptris.core.ComponentState;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.InitialisedState;
 import com.adaptris.core.StartedState;
 import com.adaptris.core.StoppedState;
 import com.adaptris.core.XStreamJsonMarshaller;
 import com.adaptris.core.http.jetty.JettyConstants;
+import com.adaptris.core.http.jetty.JettyWrapper;
+import com.adaptris.core.util.ManagedThreadFactory;
 import com.adaptris.rest.healthcheck.AdapterList;
 import com.adaptris.rest.healthcheck.AdapterState;
 import com.adaptris.rest.healthcheck.ChannelState;
+import com.adaptris.rest.healthcheck.State;
 import com.adaptris.rest.healthcheck.WorkflowState;
 import com.adaptris.rest.util.JmxMBeanHelper;
+import com.adaptris.rest.util.MBeanAttributes;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -43,12 +72,78 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
 
   private static final String BOOTSTRAP_PATH_KEY = "rest.health-check.path";
 
+  private static final String BOOTSTRAP_CACHE_MAX_AGE_KEY = "rest.health-check.cache.max-age-ms";
+
+  private static final String BOOTSTRAP_TIMEOUT_KEY = "rest.health-check.timeout-ms";
+
+  private static final String BOOTSTRAP_THREADS_KEY = "rest.health-check.threads";
+
+  private static final String BOOTSTRAP_QUEUE_SIZE_KEY = "rest.health-check.queue-size";
+
+  private static final String BOOTSTRAP_EVENTS_KEY = "rest.health-check.events.enabled";
+
+  private static final String BOOTSTRAP_EVENTS_BUFFER_KEY = "rest.health-check.events.buffer-size";
+
+  private static final String BOOTSTRAP_EVENTS_HEARTBEAT_KEY = "rest.health-check.events.heartbeat-ms";
+
+  private static final String BOOTSTRAP_EVENTS_SUBSCRIBERS_KEY = "rest.health-check.events.max-subscribers";
+
+  private static final String BOOTSTRAP_HISTORY_KEY = "rest.health-check.history.enabled";
+
+  private static final String BOOTSTRAP_HISTORY_SIZE_KEY = "rest.health-check.history.size";
+
+  private static final String BOOTSTRAP_HISTORY_WINDOW_KEY = "rest.health-check.history.window-ms";
+
+  private static final String BOOTSTRAP_HISTORY_FLAP_KEY = "rest.health-check.history.flap-threshold";
+
+  private static final String BOOTSTRAP_STABLE_KEY = "rest.health-check.ready.stable-ms";
+
+  private static final String BOOTSTRAP_PROGRESS_WINDOW_KEY = "rest.health-check.progress.window-ms";
+
+  private static final String BOOTSTRAP_PROGRESS_SAMPLE_KEY = "rest.health-check.progress.sample-ms";
+
+  private static final int DEFAULT_EVENTS_BUFFER = 100;
+
+  private static final long DEFAULT_EVENTS_HEARTBEAT_MS = 15000;
+
+  private static final int DEFAULT_EVENTS_SUBSCRIBERS = 10;
+
+  private static final int DEFAULT_HISTORY_SIZE = 32;
+
+  private static final long DEFAULT_HISTORY_WINDOW_MS = 60000;
+
+  private static final int DEFAULT_HISTORY_FLAP = 4;
+
+  private static final long DEFAULT_PROGRESS_SAMPLE_MS = 5000;
+
+  static final String CONTENT_TYPE_EVENT_STREAM = "text/event-stream";
+
+  private static final int DEFAULT_THREADS = 4;
+
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+
+  // How many of the slowest channels to report when something isn't ready.
+  private static final int SLOWEST_LIMIT = 5;
+
+  // Reported for anything that didn't answer in time; it's not in NAME_TO_COMPONENT_STATE, so it's
+  // never ready.
+  static final String UNKNOWN_STATE = "Unknown";
+
   private static final String ACCEPTED_FILTER = "GET";
 
   private static final String DEFAULT_PATH = "/workflow-health-check/*";
 
   private static final String ADAPTER_OBJ_TYPE_WILD = "com.adaptris:type=Adapter,*";
 
+  private static final String ADAPTER_OBJ_NAME = "com.adaptris:type=Adapter,id=%s";
+  private static final String CHANNEL_OBJ_NAME = "com.adaptris:type=Channel,adapter=%s,id=%s";
+  private static final String WORKFLOW_OBJ_NAME = "com.adaptris:type=Workflow,adapter=%s,channel=%s,id=%s";
+
+  private static final char SEPARATOR = '/';
+
+  private static final List<String> WATCHED_OBJ_TYPES = Collections.unmodifiableList(
+      Arrays.asList(ADAPTER_OBJ_TYPE_WILD, "com.adaptris:type=Channel,*", "com.adaptris:type=Workflow,*"));
+
   private static final String UNIQUE_ID = "UniqueId";
 
   private static final String CHILDREN_ATTRIBUTE = "Children";
@@ -57,12 +152,12 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
 
   private static final String PATH_KEY = JettyConstants.JETTY_URI;
 
-  private static final String LIVENESS_URL = "^.*/alive$";
-  private static final String READINESS_URL = "^.*/ready$";
-  private static final String DEFAULT_URL = "^.*$";
-
-  private static final List<String> URL_PATTERNS =
-      Collections.unmodifiableList(Arrays.asList(LIVENESS_URL, READINESS_URL, DEFAULT_URL));
+  // Matched against the end of the path; anything else is the default.
+  private static final String LIVENESS_URL = "/alive";
+  private static final String READINESS_URL = "/ready";
+  private static final String EVENTS_URL = "/events";
+  private static final String HISTORY_URL = "/history";
+  private static final String DEFAULT_URL = "";
 
   // mapping "StartedState" -> StartedState.getInstance()
   private static final List<ComponentState> STATE_LIST =
@@ -83,6 +178,160 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
   @Setter(AccessLevel.PACKAGE)
   private transient XStreamJsonMarshaller marshaller = null;
 
+  /**
+   * How long (in milliseconds) a cached health snapshot may be used for.
+   * <p>
+   * If set, then the adapter, channel and workflow states are cached, and only rebuilt when one of
+   * them changes, or once the snapshot is this old; if not set, then every request queries JMX.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Long cacheMaxAgeMs;
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient HealthStateCache<HealthSnapshot> stateCache;
+
+  // Shared by the cache and the events, so that each MBean only has the one listener.
+  @Getter(AccessLevel.PACKAGE)
+  private transient MBeanWatcher mbeanWatcher;
+
+  /**
+   * The latency budget (in milliseconds) for evaluating all the channels.
+   * <p>
+   * If set, then channels are evaluated in parallel, and any channel that hasn't answered by the
+   * time the budget is spent is reported as {@value #UNKNOWN_STATE} (and so not ready) rather than
+   * holding up the response; if not set, then channels are evaluated one after another.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Long timeoutMs;
+
+  /**
+   * The number of threads used to evaluate channels in parallel, defaults to 4.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int threads = DEFAULT_THREADS;
+
+  /**
+   * The number of channels that may be waiting for a thread, defaults to 100; any more are reported
+   * as {@value #UNKNOWN_STATE}.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int queueSize = DEFAULT_QUEUE_SIZE;
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient volatile ExecutorService executor;
+
+  // The last evaluation of each channel; while that's still going, we wait for it rather than start another.
+  private transient final Map<ObjectName, Future<ChannelState>> outstanding = new ConcurrentHashMap<>();
+
+  private transient final AtomicLong snapshotVersion = new AtomicLong();
+
+  /**
+   * Whether to publish state changes as server-sent events on {@code /events}.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient boolean eventsEnabled;
+
+  /**
+   * The number of events buffered for each subscriber, before the oldest are dropped; defaults to
+   * 100.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int eventsBufferSize = DEFAULT_EVENTS_BUFFER;
+
+  /**
+   * How often (in milliseconds) to send a heartbeat when there are no events; defaults to 15000.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient long eventsHeartbeatMs = DEFAULT_EVENTS_HEARTBEAT_MS;
+
+  /**
+   * The maximum number of concurrent subscribers; defaults to 10.
+   * <p>
+   * Each subscriber holds on to an HTTP thread for as long as it is connected.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int eventsMaxSubscribers = DEFAULT_EVENTS_SUBSCRIBERS;
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient StateEventPublisher eventPublisher;
+
+  /**
+   * Whether to keep a history of state transitions, reported on {@code /history}.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient boolean historyEnabled;
+
+  /**
+   * The number of transitions remembered for each component; defaults to 32.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int historySize = DEFAULT_HISTORY_SIZE;
+
+  /**
+   * The window (in milliseconds) over which transitions are counted; defaults to 60000.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient long historyWindowMs = DEFAULT_HISTORY_WINDOW_MS;
+
+  /**
+   * The number of transitions within the window that means a component is flapping; defaults to 4.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int historyFlapThreshold = DEFAULT_HISTORY_FLAP;
+
+  /**
+   * How long (in milliseconds) something must have been started before it is ready.
+   * <p>
+   * If set, then a started component is not ready until it has been started for this long, and it
+   * is never ready while it is flapping; this implies that the history is kept. Anything that was
+   * already started before we were is assumed to be stable.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Long stableMs;
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient StateHistory stateHistory;
+
+  /**
+   * How long (in milliseconds) a started workflow may go without finishing a message, while its
+   * consumer has received messages that it hasn't finished, before it is no longer alive.
+   * <p>
+   * If set, then the message counts from the profiler are sampled in the background, and the
+   * liveness probe fails if any workflow has stalled; if not set (or the profiler isn't installed)
+   * then being able to answer is enough.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Long progressWindowMs;
+
+  /**
+   * How often (in milliseconds) to sample the message counts; defaults to 5000.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient long progressSampleMs = DEFAULT_PROGRESS_SAMPLE_MS;
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient ProgressSampler progressSampler;
+
   @Getter(AccessLevel.PROTECTED)
   private transient final String acceptedFilter = ACCEPTED_FILTER;
 
@@ -105,20 +354,93 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
   private Map<String, RequestHandler> buildRoutes() {
     Map<String, RequestHandler> routes = new HashMap<>();
     routes.put(LIVENESS_URL, (msg) -> {
-      // We are alive, because we got here, so just return a blank payload.
+      // We are alive, because we got here; unless something has stalled, return a blank payload.
+      ProgressSampler sampler = progressSampler;
+      if (sampler != null) {
+        List<String> stalled = sampler.stalled();
+        if (!stalled.isEmpty()) {
+          throw new NotReadyException(stalled.get(0) + " has stalled");
+        }
+      }
       sendPayload(msg, Optional.empty());
     });
     routes.put(READINESS_URL, (msg) -> {
       // ready means we need to check all the states, and if something isn't started we return a 503
-      buildAdapterStates((id, component) -> {
-        throw new NotReadyException(id + " is not started");
-      });
+      List<String> scope = scope(msg, READINESS_URL);
+      if (!scope.isEmpty()) {
+        String notReady = firstNotReady(scope);
+        if (notReady != null) {
+          throw new NotReadyException(notReady + " is not started");
+        }
+      } else if (stateCache != null || executor != null) {
+        // Evaluate everything, so that we can report the slowest channels as well.
+        HealthSnapshot snapshot = stateCache != null ? stateCache.get() : buildSnapshot();
+        if (snapshot.notReady != null) {
+          throw new NotReadyException(snapshot.notReady + " is not started", snapshot.slowest);
+        }
+      } else {
+        String notReady = firstNotReady();
+        if (notReady != null) {
+          throw new NotReadyException(notReady + " is not started");
+        }
+      }
+      String unstable = firstUnstable(scope);
+      if (unstable != null) {
+        throw new NotReadyException(unstable + " is not stable");
+      }
       sendPayload(msg, Optional.empty());
     });
+    routes.put(EVENTS_URL, (msg) -> {
+      StateEventPublisher publisher = eventPublisher;
+      if (publisher == null || !isEventsEnabled()) {
+        throw new RequestRejectedException("State change events are not enabled", ERROR_NOT_FOUND);
+      }
+      JettyWrapper wrapper = JettyWrapper.unwrap(msg);
+      if (wrapper == null || wrapper.getResponse() == null) {
+        throw new CoreException("State change events are only available over HTTP");
+      }
+      try (StateEventPublisher.Subscription subscription = publisher.subscribe()) {
+        HttpServletResponse response = wrapper.getResponse();
+        response.setStatus(OK_200);
+        response.setContentType(CONTENT_TYPE_EVENT_STREAM);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-cache");
+        streamEvents(subscription, response.getOutputStream());
+      } catch (IOException e) {
+        log.trace("Event subscriber has gone away", e);
+      }
+      // The response is already committed, this just lets the consumer finish as normal.
+      msg.setContent("", StandardCharsets.UTF_8.name());
+      getConsumer().doResponse(msg, msg, CONTENT_TYPE_EVENT_STREAM, OK_200);
+    });
+    routes.put(HISTORY_URL, (msg) -> {
+      StateHistory history = stateHistory;
+      if (history == null) {
+        throw new RequestRejectedException("State history is not enabled", ERROR_NOT_FOUND);
+      }
+      List<String> scope = scope(msg, HISTORY_URL);
+      sendPayload(msg, history.toJson(StateHistory.inScope(scope), System.currentTimeMillis()), OK_200);
+    });
     routes.put(DEFAULT_URL, (msg) -> {
       // otherwise we just get the list of states, and report on them.
-      List<AdapterState> states = buildAdapterStates((id, component) -> {
-      });
+      List<String> scope = scope(msg, DEFAULT_URL);
+      List<AdapterState> states;
+      if (!scope.isEmpty()) {
+        states = buildScopedStates(scope);
+      } else if (stateCache != null) {
+        // The snapshot only changes when something does, so its version is all the client needs.
+        HealthSnapshot snapshot = stateCache.get();
+        String etag = entityTag(snapshot.version);
+        if (notModified(msg, etag)) {
+          sendNotModified(msg, etag, CONTENT_TYPE_JSON);
+          return;
+        }
+        addResponseHeader(msg, HEADER_ETAG, etag);
+        states = snapshot.states;
+      } else {
+        states = buildAdapterStates((id, component) -> {
+        });
+      }
       sendPayload(msg, Optional.of(states));
     });
     return routes;
@@ -133,14 +455,13 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
     try {
       // DEFAULT_BRANCH should always match, so if get() throws an exception
       // then we're in an error state anyway.
-      RequestHandler handler = URL_PATTERNS.stream().filter((s) -> pathValue.matches(s))
-          .findFirst()
-          .map((s) -> urlRoutes.get(s))
-          .get();
-      handler.handle(message);
+      urlRoutes.get(route(pathValue)).handle(message);
       onSuccess.accept(message);
     } catch (NotReadyException e) {
-      sendPayload(message, String.format("{\"failure\": \"%s\"}", e.getMessage()), ERROR_NOT_READY);
+      sendPayload(message, e.toJson(), ERROR_NOT_READY);
+    } catch (RequestRejectedException e) {
+      getConsumer().doErrorResponse(message, e, e.getHttpStatus());
+      onFailure.accept(message);
     } catch (Exception e) {
       getConsumer().doErrorResponse(message, e, ERROR_DEFAULT);
       onFailure.accept(message);
@@ -150,15 +471,106 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
   }
 
 
+  // Events and liveness are only directly under our own path; readiness and history can follow a
+  // scope. Anything else is a report, even if one of the ids happens to be "alive" (and an id that
+  // is one of the routes can be percent encoded, since we only decode it once we know the scope).
+  private String route(String path) {
+    String root = StringUtils.removeEnd(configuredUrlPath(), "*");
+    if (path == null || !path.startsWith(root)) {
+      return DEFAULT_URL;
+    }
+    String[] segments = StringUtils.split(path.substring(root.length()), SEPARATOR);
+    if (segments.length == 0) {
+      return DEFAULT_URL;
+    }
+    String last = SEPARATOR + segments[segments.length - 1];
+    if (!path.endsWith(last)) {
+      return DEFAULT_URL;
+    }
+    if (segments.length == 1 && (EVENTS_URL.equals(last) || LIVENESS_URL.equals(last))) {
+      return last;
+    }
+    if (READINESS_URL.equals(last) || HISTORY_URL.equals(last)) {
+      return last;
+    }
+    return DEFAULT_URL;
+  }
+
+  // Blocks until the subscription is closed, or the client goes away.
+  void streamEvents(StateEventPublisher.Subscription subscription, OutputStream out)
+      throws IOException, InterruptedException {
+    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    writer.write(": connected\n\n");
+    writer.flush();
+    while (!subscription.isClosed()) {
+      List<String> events = subscription.poll(getEventsHeartbeatMs());
+      if (events.isEmpty()) {
+        if (subscription.isClosed()) {
+          break;
+        }
+        // Keeps proxies from timing us out, and tells us if the client has gone.
+        writer.write(": keep-alive\n\n");
+      }
+      for (String event : events) {
+        writer.write(event);
+      }
+      writer.flush();
+    }
+  }
+
+  // Stability is about time rather than state, so it can't be cached along with the states.
+  private String firstUnstable(List<String> scope) {
+    StateHistory history = stateHistory;
+    if (history == null || getStableMs() == null) {
+      return null;
+    }
+    return history.firstUnstable(StateHistory.inScope(scope), getStableMs(), System.currentTimeMillis());
+  }
+
+  // Anything between our own path and the route is adapter[/channel[/workflow]].
+  private List<String> scope(AdaptrisMessage msg, String route) throws Exception {
+    String path = msg.getMetadataValue(PATH_KEY);
+    String root = StringUtils.removeEnd(configuredUrlPath(), "*");
+    int end = path.length() - route.length();
+    if (!path.startsWith(root) || end <= root.length()) {
+      return Collections.emptyList();
+    }
+    List<String> scope = new ArrayList<>(3);
+    for (String segment : StringUtils.split(path.substring(root.length(), end), SEPARATOR)) {
+      scope.add(decode(segment));
+    }
+    if (scope.size() > 3) {
+      throw new RequestRejectedException("No component at " + path, ERROR_NOT_FOUND);
+    }
+    return scope;
+  }
+
+  // Only pay for decoding if there's something to decode; '+' is a literal in a path.
+  private static String decode(String segment) {
+    if (segment.indexOf('%') == -1) {
+      return segment;
+    }
+    return URLDecoder.decode(segment.replace("+", "%2B"), StandardCharsets.UTF_8);
+  }
+
   private void sendPayload(AdaptrisMessage message, String newPayload, int httpStatus) {
     // Since JSON should always be UTF-8
     message.setContent(newPayload, StandardCharsets.UTF_8.name());
     getConsumer().doResponse(message, message, CONTENT_TYPE_JSON, httpStatus);
   }
 
-  private void sendPayload(AdaptrisMessage message, Optional<List<AdapterState>> optState) {
-    String newPayload = optState.map((s) -> toString(s)).orElse("");
-    sendPayload(message, newPayload, OK_200);
+  private void sendPayload(AdaptrisMessage message, Optional<List<AdapterState>> optState)
+      throws Exception {
+    if (!optState.isPresent()) {
+      sendPayload(message, "", OK_200);
+      return;
+    }
+    // This only saves the String copy; the JSON driver still builds the whole document in memory
+    // before it writes any of it.
+    try (Writer writer = message.getWriter(StandardCharsets.UTF_8.name())) {
+      marshaller.marshal(AdapterList.wrap(optState.get()), writer);
+    }
+    getConsumer().doResponse(message, message, CONTENT_TYPE_JSON, OK_200);
   }
 
   @SneakyThrows
@@ -167,54 +579,332 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
   }
 
   private List<AdapterState> buildAdapterStates(IfNotReady handler) throws Exception {
+    Long budget = getTimeoutMs();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget != null ? budget : 0);
     List<AdapterState> states = new ArrayList<>();
-    Set<ObjectInstance> adapterMBeans = getJmxMBeanHelper().getMBeans(ADAPTER_OBJ_TYPE_WILD);
-    for (ObjectInstance adapterMBean : adapterMBeans) {
-      states.add(buildAdapterState(adapterMBean, handler));
+    List<ObjectName> adapters = getJmxMBeanHelper().getMBeans(ADAPTER_OBJ_TYPE_WILD).stream()
+        .map(ObjectInstance::getObjectName).collect(Collectors.toList());
+    for (MBeanAttributes adapter : getJmxMBeanHelper()
+        .getAttributes(adapters, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE).values()) {
+      states.add(buildAdapterState(adapter, handler, deadline));
     }
     return states;
   }
 
-  private AdapterState buildAdapterState(ObjectInstance mbean, IfNotReady handler)
+  // Just enough to answer /ready; only states are checked, and we stop at the first that isn't started.
+  private String firstNotReady() throws Exception {
+    List<ObjectName> adapters = getJmxMBeanHelper().getMBeans(ADAPTER_OBJ_TYPE_WILD).stream()
+        .map(ObjectInstance::getObjectName).collect(Collectors.toList());
+    return firstNotReadyAdapter(adapters);
+  }
+
+  // Only the requested subtree is looked at, starting from its object name.
+  private String firstNotReady(List<String> scope) throws Exception {
+    switch (scope.size()) {
+      case 1:
+        return firstNotReadyAdapter(scoped(scope, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE));
+      case 2:
+        return firstNotReadyChannel(scoped(scope, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE));
+      default:
+        MBeanAttributes workflow = scoped(scope, UNIQUE_ID, COMPONENT_STATE);
+        return isStarted(workflow) ? null : workflow.getString(UNIQUE_ID);
+    }
+  }
+
+  private String firstNotReadyAdapter(Collection<ObjectName> adapters) throws Exception {
+    for (MBeanAttributes adapter : getJmxMBeanHelper()
+        .getAttributes(adapters, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE).values()) {
+      String notReady = firstNotReadyAdapter(adapter);
+      if (notReady != null) {
+        return notReady;
+      }
+    }
+    return null;
+  }
+
+  private String firstNotReadyAdapter(MBeanAttributes adapter) throws Exception {
+    if (!isStarted(adapter)) {
+      return adapter.getString(UNIQUE_ID);
+    }
+    return firstNotReadyChannel(adapter.getObjectSet(CHILDREN_ATTRIBUTE));
+  }
+
+  private String firstNotReadyChannel(Collection<ObjectName> channels) throws Exception {
+    for (MBeanAttributes channel : getJmxMBeanHelper()
+        .getAttributes(channels, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE).values()) {
+      String notReady = firstNotReadyChannel(channel);
+      if (notReady != null) {
+        return notReady;
+      }
+    }
+    return null;
+  }
+
+  private String firstNotReadyChannel(MBeanAttributes channel) throws Exception {
+    if (!isStarted(channel)) {
+      return channel.getString(UNIQUE_ID);
+    }
+    return firstNotReadyWorkflow(channel.getObjectSet(CHILDREN_ATTRIBUTE));
+  }
+
+  private String firstNotReadyWorkflow(Collection<ObjectName> workflows) throws Exception {
+    for (MBeanAttributes workflow : getJmxMBeanHelper()
+        .getAttributes(workflows, UNIQUE_ID, COMPONENT_STATE).values()) {
+      if (!isStarted(workflow)) {
+        return workflow.getString(UNIQUE_ID);
+      }
+    }
+    return null;
+  }
+
+  // The report keeps the same shape, but only contains the requested branch.
+  private List<AdapterState> buildScopedStates(List<String> scope) throws Exception {
+    MBeanAttributes adapter = scoped(scope.subList(0, 1), UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE);
+    AdapterState report = new AdapterState().withId(adapter.getString(UNIQUE_ID))
+        .withState(adapter.getClassName(COMPONENT_STATE));
+    if (scope.size() == 1) {
+      addChannelStates(report, adapter.getObjectSet(CHILDREN_ATTRIBUTE), (id, component) -> {
+      });
+      return Collections.singletonList(report);
+    }
+    MBeanAttributes channel = scoped(scope.subList(0, 2), UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE);
+    ChannelState channelReport;
+    if (scope.size() == 2) {
+      channelReport = buildChannelState(channel);
+    } else {
+      MBeanAttributes workflow = scoped(scope, UNIQUE_ID, COMPONENT_STATE);
+      channelReport = new ChannelState().withId(channel.getString(UNIQUE_ID))
+          .withState(channel.getClassName(COMPONENT_STATE));
+      channelReport.applyDefaultIfNull().add(new WorkflowState().withId(workflow.getString(UNIQUE_ID))
+          .withState(workflow.getClassName(COMPONENT_STATE)));
+    }
+    report.applyDefaultIfNull().add(channelReport);
+    return Collections.singletonList(report);
+  }
+
+  // Only the component that was asked for not being there is a 404; anything underneath it going
+  // away while we're looking is the same error as it always was.
+  private MBeanAttributes scoped(List<String> scope, String... attributes) throws Exception {
+    try {
+      return getJmxMBeanHelper().getAttributes(objectName(scope), attributes);
+    } catch (InstanceNotFoundException e) {
+      throw new RequestRejectedException("No component at " + String.join(String.valueOf(SEPARATOR), scope),
+          ERROR_NOT_FOUND);
+    }
+  }
+
+  private ObjectName objectName(List<String> scope) throws Exception {
+    List<String> quoted = scope.stream().map(WorkflowHealthCheckComponent::quoteIfRequired).collect(Collectors.toList());
+    switch (quoted.size()) {
+      case 1:
+        return ObjectName.getInstance(String.format(ADAPTER_OBJ_NAME, quoted.toArray()));
+      case 2:
+        return ObjectName.getInstance(String.format(CHANNEL_OBJ_NAME, quoted.toArray()));
+      default:
+        return ObjectName.getInstance(String.format(WORKFLOW_OBJ_NAME, quoted.toArray()));
+    }
+  }
+
+  // Plain ids are used as is, since that's how they're registered.
+  static String quoteIfRequired(String id) {
+    return StringUtils.containsAny(id, ",=:\"*?") ? ObjectName.quote(id) : id;
+  }
+
+  private static boolean isStarted(MBeanAttributes mbean) throws Exception {
+    return StartedState.getInstance().equals(NAME_TO_COMPONENT_STATE.get(mbean.getClassName(COMPONENT_STATE)));
+  }
+
+  // Build the full tree, remembering the first thing that isn't started so /ready is just a lookup.
+  private HealthSnapshot buildSnapshot() throws Exception {
+    HealthSnapshot snapshot = new HealthSnapshot();
+    snapshot.version = snapshotVersion.incrementAndGet();
+    snapshot.states = Collections.unmodifiableList(buildAdapterStates((id, component) -> {
+      if (snapshot.notReady == null) {
+        snapshot.notReady = id;
+      }
+    }));
+    if (executor != null) {
+      snapshot.slowest = snapshot.states.stream()
+          .flatMap(s -> Optional.ofNullable(s.getChannelStates()).orElse(Collections.emptyList()).stream())
+          .filter(c -> c.getElapsedMs() != null)
+          .sorted(Comparator.comparing(ChannelState::getElapsedMs).reversed())
+          .limit(SLOWEST_LIMIT)
+          .map(c -> c.getId() + " (" + c.getElapsedMs() + "ms)")
+          .collect(Collectors.toList());
+    }
+    return snapshot;
+  }
+
+  // Only the changed states are read; everything else is copied from the previous snapshot, which
+  // might still be being sent to someone, so anything on the path to a change is copied rather than
+  // modified. Null if a change isn't somewhere in the tree that we already know about.
+  private HealthSnapshot updateSnapshot(HealthSnapshot previous, List<ObjectName> changed) throws Exception {
+    List<AdapterState> states = new ArrayList<>(previous.states);
+    for (ObjectName name : changed) {
+      String state;
+      try {
+        state = getJmxMBeanHelper().getAttributes(name, COMPONENT_STATE).getClassName(COMPONENT_STATE);
+      } catch (InstanceNotFoundException e) {
+        return null;
+      }
+      if (!updateState(states, name, state)) {
+        return null;
+      }
+    }
+    HealthSnapshot snapshot = new HealthSnapshot();
+    snapshot.version = snapshotVersion.incrementAndGet();
+    snapshot.states = Collections.unmodifiableList(states);
+    snapshot.slowest = previous.slowest;
+    IfNotReady handler = (id, component) -> {
+      if (snapshot.notReady == null) {
+        snapshot.notReady = id;
+      }
+    };
+    for (AdapterState adapter : states) {
+      verifyReady(adapter.getId(), adapter.getState(), handler);
+      for (ChannelState channel : Optional.ofNullable(adapter.getChannelStates()).orElse(Collections.emptyList())) {
+        verifyReady(channel, handler);
+      }
+    }
+    return snapshot;
+  }
+
+  private static boolean updateState(List<AdapterState> adapters, ObjectName name, String state) {
+    String type = name.getKeyProperty("type");
+    String id = unquoteIfRequired(name.getKeyProperty("id"));
+    int a = indexOf(adapters, "Adapter".equals(type) ? id : unquoteIfRequired(name.getKeyProperty("adapter")));
+    if (a < 0) {
+      return false;
+    }
+    AdapterState adapter = new AdapterState().withChannelStates(adapters.get(a).getChannelStates())
+        .withId(adapters.get(a).getId()).withState(adapters.get(a).getState());
+    adapters.set(a, adapter);
+    if ("Adapter".equals(type)) {
+      adapter.setState(state);
+      return true;
+    }
+    int c = indexOf(adapter.getChannelStates(), "Channel".equals(type) ? id : unquoteIfRequired(name.getKeyProperty("channel")));
+    if (c < 0) {
+      return false;
+    }
+    List<ChannelState> channels = new ArrayList<>(adapter.getChannelStates());
+    adapter.setChannelStates(channels);
+    ChannelState channel = new ChannelState().withWorkflowStates(channels.get(c).getWorkflowStates())
+        .withId(channels.get(c).getId()).withState(channels.get(c).getState());
+    channel.setElapsedMs(channels.get(c).getElapsedMs());
+    channels.set(c, channel);
+    if ("Channel".equals(type)) {
+      channel.setState(state);
+      return true;
+    }
+    int w = indexOf(channel.getWorkflowStates(), id);
+    if (w < 0) {
+      return false;
+    }
+    List<WorkflowState> workflows = new ArrayList<>(channel.getWorkflowStates());
+    channel.setWorkflowStates(workflows);
+    workflows.set(w, new WorkflowState().withId(id).withState(state));
+    return true;
+  }
+
+  private static int indexOf(List<? extends State> states, String id) {
+    for (int i = 0; states != null && i < states.size(); i++) {
+      if (states.get(i).getId().equals(id)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String unquoteIfRequired(String id) {
+    return id != null && id.startsWith("\"") ? ObjectName.unquote(id) : id;
+  }
+
+  private AdapterState buildAdapterState(MBeanAttributes mbean, IfNotReady handler, long deadline)
       throws Exception {
-    String objRef = mbean.getObjectName().toString();
-    String id = getJmxMBeanHelper().getStringAttribute(objRef, UNIQUE_ID);
-    String stateStr = getJmxMBeanHelper().getStringAttributeClassName(objRef, COMPONENT_STATE);
+    String id = mbean.getString(UNIQUE_ID);
+    String stateStr = mbean.getClassName(COMPONENT_STATE);
     AdapterState report = new AdapterState().withId(id).withState(stateStr);
     verifyReady(id, stateStr, handler);
-    Set<ObjectName> channels =
-        getJmxMBeanHelper().getObjectSetAttribute(objRef, CHILDREN_ATTRIBUTE);
-    addChannelStates(report, channels, handler);
+    ExecutorService pool = executor;
+    if (pool != null) {
+      addChannelStates(report, mbean.getObjectSet(CHILDREN_ATTRIBUTE), handler, pool, deadline);
+    } else {
+      addChannelStates(report, mbean.getObjectSet(CHILDREN_ATTRIBUTE), handler);
+    }
     return report;
   }
 
 
   private void addChannelStates(AdapterState adapterState, Set<ObjectName> namedChannels,
       IfNotReady handler) throws Exception {
+    for (MBeanAttributes channel : getJmxMBeanHelper()
+        .getAttributes(namedChannels, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE).values()) {
+      ChannelState report = buildChannelState(channel);
+      verifyReady(report, handler);
+      adapterState.applyDefaultIfNull().add(report);
+    }
+  }
 
+  // Each channel is evaluated on the pool; anything that isn't done by the deadline, or that the
+  // pool has no room for, is unknown. Nothing is cancelled, since interrupting a JMX call doesn't
+  // stop the channel doing whatever it's doing; instead, a channel that is still being evaluated
+  // isn't evaluated again until that's finished.
+  private void addChannelStates(AdapterState adapterState, Set<ObjectName> namedChannels,
+      IfNotReady handler, ExecutorService pool, long deadline) throws Exception {
+    Map<ObjectName, Future<ChannelState>> pending = new LinkedHashMap<>();
     for (ObjectName channel : namedChannels) {
-      String objRef = channel.toString();
-      String id = getJmxMBeanHelper().getStringAttribute(objRef, UNIQUE_ID);
-      String stateStr = getJmxMBeanHelper().getStringAttributeClassName(objRef, COMPONENT_STATE);
-      ChannelState report = new ChannelState().withId(id).withState(stateStr);
-      verifyReady(id, stateStr, handler);
-      Set<ObjectName> workflows =
-          getJmxMBeanHelper().getObjectSetAttribute(objRef, CHILDREN_ATTRIBUTE);
-      addWorkflowStates(report, workflows, handler);
+      try {
+        pending.put(channel, outstanding.compute(channel,
+            (name, previous) -> previous != null && !previous.isDone() ? previous : evaluate(pool, name)));
+      } catch (RejectedExecutionException e) {
+        pending.put(channel, null);
+      }
+    }
+    for (Map.Entry<ObjectName, Future<ChannelState>> entry : pending.entrySet()) {
+      ChannelState report;
+      try {
+        if (entry.getValue() == null) {
+          report = new ChannelState().withId(entry.getKey().getKeyProperty("id")).withState(UNKNOWN_STATE);
+        } else {
+          report = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+      } catch (TimeoutException e) {
+        report = new ChannelState().withId(entry.getKey().getKeyProperty("id")).withState(UNKNOWN_STATE);
+        report.setElapsedMs(getTimeoutMs());
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+      verifyReady(report, handler);
       adapterState.applyDefaultIfNull().add(report);
     }
   }
 
+  private Future<ChannelState> evaluate(ExecutorService pool, ObjectName channel) {
+    return pool.submit(() -> {
+      long start = System.nanoTime();
+      ChannelState report =
+          buildChannelState(getJmxMBeanHelper().getAttributes(channel, UNIQUE_ID, COMPONENT_STATE, CHILDREN_ATTRIBUTE));
+      report.setElapsedMs(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return report;
+    });
+  }
 
-  private void addWorkflowStates(ChannelState channelState, Set<ObjectName> namedWorkflows,
-      IfNotReady handler) throws Exception {
-    for (ObjectName workflow : namedWorkflows) {
-      String objRef = workflow.toString();
-      String id = getJmxMBeanHelper().getStringAttribute(objRef, UNIQUE_ID);
-      String stateStr = getJmxMBeanHelper().getStringAttributeClassName(objRef, COMPONENT_STATE);
-      WorkflowState report = new WorkflowState().withId(id).withState(stateStr);
-      verifyReady(id, stateStr, handler);
-      channelState.applyDefaultIfNull().add(report);
+  private ChannelState buildChannelState(MBeanAttributes channel) throws Exception {
+    ChannelState report = new ChannelState().withId(channel.getString(UNIQUE_ID))
+        .withState(channel.getClassName(COMPONENT_STATE));
+    for (MBeanAttributes workflow : getJmxMBeanHelper()
+        .getAttributes(channel.getObjectSet(CHILDREN_ATTRIBUTE), UNIQUE_ID, COMPONENT_STATE).values()) {
+      report.applyDefaultIfNull().add(new WorkflowState().withId(workflow.getString(UNIQUE_ID))
+          .withState(workflow.getClassName(COMPONENT_STATE)));
+    }
+    return report;
+  }
+
+  private static void verifyReady(ChannelState channel, IfNotReady handler) throws Exception {
+    verifyReady(channel.getId(), channel.getState(), handler);
+    for (WorkflowState workflow : Optional.ofNullable(channel.getWorkflowStates()).orElse(Collections.emptyList())) {
+      verifyReady(workflow.getId(), workflow.getState(), handler);
     }
   }
 
@@ -231,6 +921,104 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
   public void init(Properties config) throws Exception {
     super.init(config);
     setConfiguredUrlPath(config.getProperty(BOOTSTRAP_PATH_KEY));
+    setCacheMaxAgeMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_CACHE_MAX_AGE_KEY))
+        .map(Long::valueOf).orElse(null));
+    setTimeoutMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_TIMEOUT_KEY))
+        .map(Long::valueOf).orElse(null));
+    setThreads(Optional.ofNullable(config.getProperty(BOOTSTRAP_THREADS_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_THREADS));
+    setQueueSize(Optional.ofNullable(config.getProperty(BOOTSTRAP_QUEUE_SIZE_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_QUEUE_SIZE));
+    setEventsEnabled(Boolean.parseBoolean(config.getProperty(BOOTSTRAP_EVENTS_KEY)));
+    setEventsBufferSize(Optional.ofNullable(config.getProperty(BOOTSTRAP_EVENTS_BUFFER_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_EVENTS_BUFFER));
+    setEventsHeartbeatMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_EVENTS_HEARTBEAT_KEY))
+        .map(Long::valueOf).orElse(DEFAULT_EVENTS_HEARTBEAT_MS));
+    setEventsMaxSubscribers(Optional.ofNullable(config.getProperty(BOOTSTRAP_EVENTS_SUBSCRIBERS_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_EVENTS_SUBSCRIBERS));
+    setHistoryEnabled(Boolean.parseBoolean(config.getProperty(BOOTSTRAP_HISTORY_KEY)));
+    setHistorySize(Optional.ofNullable(config.getProperty(BOOTSTRAP_HISTORY_SIZE_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_HISTORY_SIZE));
+    setHistoryWindowMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_HISTORY_WINDOW_KEY))
+        .map(Long::valueOf).orElse(DEFAULT_HISTORY_WINDOW_MS));
+    setHistoryFlapThreshold(Optional.ofNullable(config.getProperty(BOOTSTRAP_HISTORY_FLAP_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_HISTORY_FLAP));
+    setStableMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_STABLE_KEY))
+        .map(Long::valueOf).orElse(null));
+    setProgressWindowMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_PROGRESS_WINDOW_KEY))
+        .map(Long::valueOf).orElse(null));
+    setProgressSampleMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_PROGRESS_SAMPLE_KEY))
+        .map(Long::valueOf).orElse(DEFAULT_PROGRESS_SAMPLE_MS));
+  }
+
+  @Override
+  public void start() throws Exception {
+    if (getTimeoutMs() != null) {
+      // Rejects, rather than queueing without limit, if the channels are answering slower than we ask.
+      executor = new ThreadPoolExecutor(getThreads(), getThreads(), 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(getQueueSize()), new ManagedThreadFactory(friendlyName()));
+    }
+    List<ObjectName> watched = new ArrayList<>();
+    for (String type : WATCHED_OBJ_TYPES) {
+      watched.add(new ObjectName(type));
+    }
+    if (isHistoryEnabled() || getStableMs() != null) {
+      stateHistory = new StateHistory(getHistorySize(), getHistoryWindowMs(), getHistoryFlapThreshold());
+    }
+    // The history is fed by the same notifications as the events, even if no-one can subscribe.
+    if (isEventsEnabled() || stateHistory != null) {
+      eventPublisher = new StateEventPublisher(getJmxMBeanHelper(), getEventsBufferSize(),
+          getEventsMaxSubscribers(), friendlyName(), stateHistory);
+    }
+    if (getCacheMaxAgeMs() != null) {
+      stateCache = new HealthStateCache<>(this::buildSnapshot, this::updateSnapshot, getCacheMaxAgeMs());
+    }
+    if (eventPublisher != null || stateCache != null) {
+      mbeanWatcher = new MBeanWatcher(getJmxMBeanHelper(), watched);
+      if (stateCache != null) {
+        mbeanWatcher.addListener(stateCache);
+      }
+      if (eventPublisher != null) {
+        mbeanWatcher.addListener(eventPublisher);
+      }
+      mbeanWatcher.start();
+      if (eventPublisher != null) {
+        eventPublisher.start(mbeanWatcher.subscribed());
+      }
+    }
+    if (getProgressWindowMs() != null) {
+      progressSampler = new ProgressSampler(getJmxMBeanHelper(), getProgressWindowMs(), getProgressSampleMs(),
+          friendlyName());
+      progressSampler.start();
+    }
+    super.start();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    super.stop();
+    if (mbeanWatcher != null) {
+      mbeanWatcher.stop();
+      mbeanWatcher = null;
+    }
+    if (stateCache != null) {
+      stateCache.clear();
+      stateCache = null;
+    }
+    if (eventPublisher != null) {
+      eventPublisher.stop();
+      eventPublisher = null;
+    }
+    stateHistory = null;
+    if (progressSampler != null) {
+      progressSampler.stop();
+      progressSampler = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    outstanding.clear();
   }
 
   // What to do if the component isn't ready.
@@ -247,11 +1035,33 @@ public class WorkflowHealthCheckComponent extends AbstractRestfulEndpoint {
     void handle(AdaptrisMessage msg) throws Exception;
   }
 
+  private static class HealthSnapshot {
+    private List<AdapterState> states;
+    private String notReady;
+    private List<String> slowest;
+    private long version;
+  }
+
   private class NotReadyException extends Exception {
     private static final long serialVersionUID = 2020060201L;
 
+    private final List<String> slowest;
+
     public NotReadyException(String e) {
+      this(e, null);
+    }
+
+    public NotReadyException(String e, List<String> slowest) {
       super(e);
+      this.slowest = slowest;
+    }
+
+    private String toJson() {
+      if (slowest == null || slowest.isEmpty()) {
+        return String.format("{\"failure\": \"%s\"}", getMessage());
+      }
+      return String.format("{\"failure\": \"%s\", \"slowest\": [%s]}", getMessage(),
+          slowest.stream().map(s -> "\"" + s + "\"").collect(Collectors.joining(", ")));
     }
   }
 }
@@ -16,6 +16,13 @@ public class ChannelState extends State {
   @Setter
   private List<WorkflowState> workflowStates;
 
+  /**
+   * How long it took to evaluate this channel, only reported if channels are evaluated in parallel.
+   */
+  @Getter
+  @Setter
+  private Long elapsedMs;
+
   public ChannelState withWorkflowStates(List<WorkflowState> states) {
     setWorkflowStates(states);
     return this;
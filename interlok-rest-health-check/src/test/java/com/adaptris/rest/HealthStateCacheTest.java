@@ -0,0 +1,183 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.AttributeChangeNotification;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.adaptris.rest.util.JmxMBeanHelper;
+
+public class HealthStateCacheTest {
+
+  private static final String WORKFLOW_NAME = "com.adaptris:type=Workflow,adapter=HealthStateCacheTest,channel=c,id=";
+
+  private MBeanServer mbeanServer;
+  private AtomicInteger loads;
+  private MBeanWatcher watcher;
+  private HealthStateCache<Object> cache;
+
+  @Before
+  public void setUp() throws Exception {
+    mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    loads = new AtomicInteger();
+    watcher = new MBeanWatcher(new JmxMBeanHelper(), Arrays.asList(new ObjectName("com.adaptris:type=Workflow,*")));
+    cache = new HealthStateCache<>(() -> {
+      loads.incrementAndGet();
+      return new Object();
+    }, 60000);
+    watcher.addListener(cache);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    watcher.stop();
+    for (ObjectName name : mbeanServer.queryNames(new ObjectName(WORKFLOW_NAME + "*"), null)) {
+      mbeanServer.unregisterMBean(name);
+    }
+  }
+
+  @Test
+  public void testCached() throws Exception {
+    watcher.start();
+    Object first = cache.get();
+    assertSame(first, cache.get());
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void testMaxAge() throws Exception {
+    cache = new HealthStateCache<>(Object::new, 0);
+    watcher.addListener(cache);
+    watcher.start();
+    assertNotSame(cache.get(), cache.get());
+    assertEquals(2, cache.getRebuilds().get());
+  }
+
+  @Test
+  public void testNotification() throws Exception {
+    Workflow existing = new Workflow();
+    mbeanServer.registerMBean(existing, new ObjectName(WORKFLOW_NAME + "existing"));
+    watcher.start();
+    Object first = cache.get();
+    existing.changed();
+    Object second = cache.get();
+    assertNotSame(first, second);
+    assertSame(second, cache.get());
+
+    // Registering a new workflow is a change; and we should now be listening to it.
+    Workflow added = new Workflow();
+    mbeanServer.registerMBean(added, new ObjectName(WORKFLOW_NAME + "added"));
+    Object third = cache.get();
+    assertNotSame(second, third);
+    added.changed();
+    assertNotSame(third, cache.get());
+    assertEquals(4, loads.get());
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    Workflow existing = new Workflow();
+    ObjectName name = new ObjectName(WORKFLOW_NAME + "existing");
+    mbeanServer.registerMBean(existing, name);
+    List<List<ObjectName>> updates = new ArrayList<>();
+    HealthStateCache<Object> updating = new HealthStateCache<>(Object::new, (previous, changed) -> {
+      updates.add(changed);
+      return new Object();
+    }, 60000);
+    watcher.addListener(updating);
+    watcher.start();
+    Object first = updating.get();
+    existing.changed();
+    existing.changed();
+    Object second = updating.get();
+    assertNotSame(first, second);
+    assertSame(second, updating.get());
+    assertEquals(Arrays.asList(Arrays.asList(name)), updates);
+    assertEquals(1, updating.getRebuilds().get());
+    assertEquals(1, updating.getUpdates().get());
+
+    // An update that can't be done means starting again.
+    HealthStateCache<Object> failing = new HealthStateCache<>(Object::new, (previous, changed) -> null, 60000);
+    watcher.addListener(failing);
+    failing.get();
+    existing.changed();
+    failing.get();
+    assertEquals(2, failing.getRebuilds().get());
+    assertEquals(0, failing.getUpdates().get());
+  }
+
+  @Test
+  public void testUpdateFails() throws Exception {
+    Workflow existing = new Workflow();
+    mbeanServer.registerMBean(existing, new ObjectName(WORKFLOW_NAME + "existing"));
+    AtomicInteger loaderFailures = new AtomicInteger();
+    HealthStateCache<Object> failing = new HealthStateCache<>(() -> {
+      if (loaderFailures.getAndDecrement() > 0) {
+        throw new IllegalStateException("Expected");
+      }
+      return new Object();
+    }, (previous, changed) -> {
+      throw new AttributeNotFoundException("Expected");
+    }, 60000);
+    watcher.addListener(failing);
+    watcher.start();
+    Object first = failing.get();
+    existing.changed();
+    // The rebuild that the failed update falls back to fails as well...
+    loaderFailures.set(1);
+    try {
+      failing.get();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    // ...but the change isn't forgotten.
+    Object second = failing.get();
+    assertNotSame(first, second);
+    assertSame(second, failing.get());
+    assertEquals(2, failing.getRebuilds().get());
+    assertEquals(0, failing.getUpdates().get());
+  }
+
+  @Test
+  public void testUnrelatedMBean() throws Exception {
+    watcher.start();
+    Object first = cache.get();
+    ObjectName name = new ObjectName("com.adaptris:type=Unrelated,id=HealthStateCacheTest");
+    mbeanServer.registerMBean(new Workflow(), name);
+    try {
+      assertSame(first, cache.get());
+    } finally {
+      mbeanServer.unregisterMBean(name);
+    }
+  }
+
+  public interface WorkflowMBean {
+    String getUniqueId();
+  }
+
+  public static class Workflow extends NotificationBroadcasterSupport implements WorkflowMBean {
+    private long sequence;
+
+    @Override
+    public String getUniqueId() {
+      return "workflow";
+    }
+
+    void changed() {
+      sendNotification(new AttributeChangeNotification(this, ++sequence, System.currentTimeMillis(), "changed",
+          "ComponentState", String.class.getName(), "StoppedState", "StartedState"));
+    }
+  }
+}
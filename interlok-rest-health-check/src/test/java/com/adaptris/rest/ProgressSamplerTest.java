@@ -0,0 +1,176 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.adaptris.core.ComponentState;
+import com.adaptris.core.StartedState;
+import com.adaptris.core.StoppedState;
+import com.adaptris.rest.util.JmxMBeanHelper;
+
+public class ProgressSamplerTest {
+
+  private static final String DOMAIN = "com.adaptris:";
+  private static final String WORKFLOW_ID = "ProgressSamplerTest";
+
+  private MBeanServer mbeanServer;
+  private ProgressSampler sampler;
+  private Metric consumer;
+  private Metric workflow;
+  private Workflow workflowState;
+
+  @Before
+  public void setUp() throws Exception {
+    mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    sampler = new ProgressSampler(new JmxMBeanHelper(), 1000, 100, getClass().getSimpleName());
+    consumer = new Metric();
+    workflow = new Metric();
+    workflowState = new Workflow();
+    mbeanServer.registerMBean(consumer,
+        new ObjectName(DOMAIN + "type=Profiler,componentType=consumer,id=" + WORKFLOW_ID + "-consumer"));
+    mbeanServer.registerMBean(workflow,
+        new ObjectName(DOMAIN + "type=Profiler,componentType=workflow,id=" + WORKFLOW_ID));
+    mbeanServer.registerMBean(workflowState,
+        new ObjectName(DOMAIN + "type=Workflow,adapter=a,channel=c,id=" + WORKFLOW_ID));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    sampler.stop();
+    for (String pattern : Arrays.asList("type=Profiler,*", "type=Workflow,*")) {
+      for (ObjectName name : mbeanServer.queryNames(new ObjectName(DOMAIN + pattern), null)) {
+        if (String.valueOf(name.getKeyProperty("id")).startsWith(WORKFLOW_ID)) {
+          mbeanServer.unregisterMBean(name);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testStalled() throws Exception {
+    consumer.messageCount = 5;
+    workflow.messageCount = 2;
+    workflow.failedMessageCount = 1;
+    sampler.sample(0);
+    assertTrue(sampler.stalled().isEmpty());
+    consumer.messageCount = 6;
+    sampler.sample(500);
+    assertTrue(sampler.stalled().isEmpty());
+    sampler.sample(1000);
+    assertEquals(Arrays.asList(WORKFLOW_ID), sampler.stalled());
+    // Nothing new has arrived for a whole window, so it's just idle.
+    sampler.sample(1500);
+    assertTrue(sampler.stalled().isEmpty());
+  }
+
+  @Test
+  public void testIdleWithGap() throws Exception {
+    // e.g. messages that were dropped before they got to the workflow.
+    consumer.messageCount = 5;
+    workflow.messageCount = 3;
+    for (long now = 0; now <= 10000; now += 500) {
+      sampler.sample(now);
+      assertTrue(sampler.stalled().isEmpty());
+    }
+  }
+
+  @Test
+  public void testProgress() throws Exception {
+    consumer.messageCount = 5;
+    workflow.messageCount = 2;
+    sampler.sample(0);
+    workflow.messageCount = 3;
+    sampler.sample(1000);
+    assertTrue(sampler.stalled().isEmpty());
+    consumer.messageCount = 6;
+    sampler.sample(2000);
+    assertEquals(Arrays.asList(WORKFLOW_ID), sampler.stalled());
+    // Catching up is progress.
+    workflow.messageCount = 6;
+    sampler.sample(3000);
+    assertTrue(sampler.stalled().isEmpty());
+  }
+
+  @Test
+  public void testNothingPending() throws Exception {
+    consumer.messageCount = 5;
+    workflow.messageCount = 5;
+    sampler.sample(0);
+    sampler.sample(5000);
+    assertTrue(sampler.stalled().isEmpty());
+  }
+
+  @Test
+  public void testNotStarted() throws Exception {
+    consumer.messageCount = 5;
+    workflowState.state = StoppedState.getInstance();
+    sampler.sample(0);
+    sampler.sample(5000);
+    assertTrue(sampler.stalled().isEmpty());
+  }
+
+  @Test
+  public void testConsumerNotProfiled() throws Exception {
+    mbeanServer.unregisterMBean(
+        new ObjectName(DOMAIN + "type=Profiler,componentType=consumer,id=" + WORKFLOW_ID + "-consumer"));
+    sampler.sample(0);
+    sampler.sample(5000);
+    assertTrue(sampler.stalled().isEmpty());
+  }
+
+  @Test
+  public void testStartStop() throws Exception {
+    consumer.messageCount = 1;
+    sampler.start();
+    Thread.sleep(250);
+    sampler.stop();
+    assertTrue(sampler.stalled().isEmpty());
+  }
+
+  public interface MetricMBean {
+    String getWorkflowId();
+
+    long getMessageCount();
+
+    long getFailedMessageCount();
+  }
+
+  public static class Metric implements MetricMBean {
+    private volatile long messageCount;
+    private volatile long failedMessageCount;
+
+    @Override
+    public String getWorkflowId() {
+      return WORKFLOW_ID;
+    }
+
+    @Override
+    public long getMessageCount() {
+      return messageCount;
+    }
+
+    @Override
+    public long getFailedMessageCount() {
+      return failedMessageCount;
+    }
+  }
+
+  public interface WorkflowMBean {
+    ComponentState getComponentState();
+  }
+
+  public static class Workflow implements WorkflowMBean {
+    private volatile ComponentState state = StartedState.getInstance();
+
+    @Override
+    public ComponentState getComponentState() {
+      return state;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanServer;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.adaptris.core.ComponentState;
+import com.adaptris.core.StartedState;
+import com.adaptris.core.StoppedState;
+import com.adaptris.rest.util.JmxMBeanHelper;
+
+public class StateEventPublisherTest {
+
+  private static final String WORKFLOW_NAME =
+      "com.adaptris:type=Workflow,adapter=StateEventPublisherTest,channel=MyChannel,id=";
+
+  private MBeanServer mbeanServer;
+  private MBeanWatcher watcher;
+  private StateEventPublisher publisher;
+
+  @Before
+  public void setUp() throws Exception {
+    mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    JmxMBeanHelper helper = new JmxMBeanHelper();
+    watcher = new MBeanWatcher(helper, Arrays.asList(new ObjectName("com.adaptris:type=Workflow,*")));
+    publisher = new StateEventPublisher(helper, 2, 2, getClass().getSimpleName());
+    watcher.addListener(publisher);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    watcher.stop();
+    publisher.stop();
+    for (ObjectName name : mbeanServer.queryNames(new ObjectName(WORKFLOW_NAME + "*"), null)) {
+      mbeanServer.unregisterMBean(name);
+    }
+  }
+
+  @Test
+  public void testStateChange() throws Exception {
+    Workflow workflow = new Workflow("MyWorkflow");
+    mbeanServer.registerMBean(workflow, new ObjectName(WORKFLOW_NAME + "MyWorkflow"));
+    start();
+    try (StateEventPublisher.Subscription subscription = publisher.subscribe()) {
+      workflow.changeState(StoppedState.getInstance());
+      List<String> events = pollUntil(subscription, 1);
+      assertEquals(1, events.size());
+      String event = events.get(0);
+      assertTrue(event.startsWith("id: 1\nevent: state\ndata: {"));
+      assertTrue(event.contains("\"type\":\"Workflow\""));
+      assertTrue(event.contains("\"id\":\"MyWorkflow\""));
+      assertTrue(event.contains("\"channel\":\"MyChannel\""));
+      assertTrue(event.contains("\"state\":\"StoppedState\""));
+      assertTrue(event.contains("\"previous\":\"StartedState\""));
+      assertTrue(event.endsWith("\n\n"));
+
+      // A notification that isn't a change isn't an event.
+      workflow.changeState(StoppedState.getInstance());
+      assertEquals(0, subscription.poll(200).size());
+    }
+  }
+
+  @Test
+  public void testRegisterAndUnregister() throws Exception {
+    start();
+    try (StateEventPublisher.Subscription subscription = publisher.subscribe()) {
+      ObjectName name = new ObjectName(WORKFLOW_NAME + "Added");
+      mbeanServer.registerMBean(new Workflow("Added"), name);
+      List<String> events = pollUntil(subscription, 1);
+      assertTrue(events.get(0).contains("\"state\":\"StartedState\""));
+
+      mbeanServer.unregisterMBean(name);
+      events = pollUntil(subscription, 1);
+      assertTrue(events.get(0).contains("\"state\":\"" + StateEventPublisher.UNREGISTERED + "\""));
+    }
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    start();
+    ObjectName name = new ObjectName(WORKFLOW_NAME + "Busy");
+    try (StateEventPublisher.Subscription subscription = publisher.subscribe()) {
+      publisher.publish(name, "Busy", "StoppedState", "StartedState");
+      publisher.publish(name, "Busy", "StartedState", "StoppedState");
+      publisher.publish(name, "Busy", "ClosedState", "StartedState");
+      List<String> events = subscription.poll(0);
+      assertEquals(2, events.size());
+      assertTrue(events.get(0).startsWith("id: 2\n"));
+      assertTrue(events.get(1).startsWith("id: 3\n"));
+      assertEquals(1, publisher.getDropped().get());
+    }
+  }
+
+  @Test(expected = RequestRejectedException.class)
+  public void testTooManySubscribers() throws Exception {
+    start();
+    try (StateEventPublisher.Subscription one = publisher.subscribe();
+        StateEventPublisher.Subscription two = publisher.subscribe()) {
+      assertEquals(2, publisher.subscribers());
+      publisher.subscribe();
+    }
+  }
+
+  @Test
+  public void testStopClosesSubscriptions() throws Exception {
+    start();
+    StateEventPublisher.Subscription subscription = publisher.subscribe();
+    publisher.stop();
+    assertTrue(subscription.isClosed());
+    assertEquals(0, subscription.poll(5000).size());
+  }
+
+  private void start() throws Exception {
+    watcher.start();
+    publisher.start(watcher.subscribed());
+  }
+
+  private static List<String> pollUntil(StateEventPublisher.Subscription subscription, int count)
+      throws Exception {
+    List<String> events = new ArrayList<>();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (events.size() < count && System.currentTimeMillis() < deadline) {
+      events.addAll(subscription.poll(100));
+    }
+    return events;
+  }
+
+  public interface WorkflowMBean {
+    String getUniqueId();
+
+    ComponentState getComponentState();
+  }
+
+  public static class Workflow extends NotificationBroadcasterSupport implements WorkflowMBean {
+    private final String uniqueId;
+    private volatile ComponentState state = StartedState.getInstance();
+    private long sequence;
+
+    public Workflow(String uniqueId) {
+      this.uniqueId = uniqueId;
+    }
+
+    @Override
+    public String getUniqueId() {
+      return uniqueId;
+    }
+
+    @Override
+    public ComponentState getComponentState() {
+      return state;
+    }
+
+    void changeState(ComponentState newState) {
+      state = newState;
+      sendNotification(new AttributeChangeNotification(this, ++sequence, System.currentTimeMillis(), "changed",
+          "ComponentState", ComponentState.class.getName(), null, newState));
+    }
+  }
+}
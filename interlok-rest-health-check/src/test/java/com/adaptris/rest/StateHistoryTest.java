@@ -0,0 +1,115 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.management.ObjectName;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+
+public class StateHistoryTest {
+
+  private static final String STARTED = "StartedState";
+  private static final String STOPPED = "StoppedState";
+
+  private static final String ADAPTER = "com.adaptris:type=Adapter,id=MyAdapter";
+  private static final String CHANNEL = "com.adaptris:type=Channel,adapter=MyAdapter,id=MyChannel";
+  private static final String WORKFLOW = "com.adaptris:type=Workflow,adapter=MyAdapter,channel=MyChannel,id=MyWorkflow";
+
+  @Test
+  public void testPrimedIsStable() throws Exception {
+    StateHistory history = new StateHistory(4, 60000, 3);
+    history.prime(new ObjectName(WORKFLOW), STARTED);
+    assertNull(history.firstUnstable(name -> true, 30000, System.currentTimeMillis()));
+  }
+
+  @Test
+  public void testStableFor() throws Exception {
+    StateHistory history = new StateHistory(4, 60000, 3);
+    ObjectName workflow = new ObjectName(WORKFLOW);
+    history.prime(workflow, STOPPED);
+    history.record(workflow, STARTED, STOPPED, 1000);
+    assertEquals("MyWorkflow", history.firstUnstable(name -> true, 30000, 20000));
+    assertNull(history.firstUnstable(name -> true, 30000, 31000));
+    // Only started things need to be stable, if it's stopped then it's just not ready.
+    history.record(workflow, STOPPED, STARTED, 32000);
+    assertNull(history.firstUnstable(name -> true, 30000, 33000));
+  }
+
+  @Test
+  public void testFlapping() throws Exception {
+    StateHistory history = new StateHistory(4, 10000, 3);
+    ObjectName workflow = new ObjectName(WORKFLOW);
+    history.prime(workflow, STARTED);
+    history.record(workflow, STOPPED, STARTED, 1000);
+    history.record(workflow, STARTED, STOPPED, 2000);
+    assertFalse(history.isFlapping(workflow, 3000));
+    history.record(workflow, STOPPED, STARTED, 3000);
+    history.record(workflow, STARTED, STOPPED, 4000);
+    assertEquals(4, history.transitions(workflow, 4000));
+    assertTrue(history.isFlapping(workflow, 4000));
+    // Long enough since the last restart, but still flapping.
+    assertEquals("MyWorkflow", history.firstUnstable(name -> true, 1000, 8000));
+    // Once things are outside the window they don't count.
+    assertEquals(2, history.transitions(workflow, 12500));
+    assertFalse(history.isFlapping(workflow, 12500));
+    assertNull(history.firstUnstable(name -> true, 1000, 12500));
+  }
+
+  @Test
+  public void testRingWraps() throws Exception {
+    StateHistory history = new StateHistory(2, 60000, 10);
+    ObjectName workflow = new ObjectName(WORKFLOW);
+    history.prime(workflow, STARTED);
+    history.record(workflow, STOPPED, STARTED, 1000);
+    history.record(workflow, STARTED, STOPPED, 3000);
+    history.record(workflow, STOPPED, STARTED, 6000);
+    assertEquals(2, history.transitions(workflow, 6000));
+
+    JSONArray json = new JSONArray(history.toJson(name -> true, 6000));
+    assertEquals(1, json.length());
+    JSONObject report = json.getJSONObject(0);
+    assertEquals("Workflow", report.getString("type"));
+    assertEquals("MyWorkflow", report.getString("id"));
+    assertEquals("MyChannel", report.getString("channel"));
+    assertEquals(STOPPED, report.getString("state"));
+    assertEquals(6000, report.getLong("since"));
+    assertFalse(report.getBoolean("flapping"));
+    JSONArray transitions = report.getJSONArray("history");
+    assertEquals(2, transitions.length());
+    assertEquals(3000, transitions.getJSONObject(0).getLong("timestamp"));
+    assertEquals(2000, transitions.getJSONObject(0).getLong("previousDurationMs"));
+    assertEquals(STOPPED, transitions.getJSONObject(1).getString("state"));
+    assertEquals(3000, transitions.getJSONObject(1).getLong("previousDurationMs"));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    StateHistory history = new StateHistory(4, 60000, 3);
+    ObjectName workflow = new ObjectName(WORKFLOW);
+    history.record(workflow, STARTED, null, System.currentTimeMillis());
+    assertEquals("MyWorkflow", history.firstUnstable(name -> true, 30000, System.currentTimeMillis()));
+    history.remove(workflow);
+    assertNull(history.firstUnstable(name -> true, 30000, System.currentTimeMillis()));
+    assertEquals("[]", history.toJson(name -> true, System.currentTimeMillis()));
+  }
+
+  @Test
+  public void testInScope() throws Exception {
+    ObjectName adapter = new ObjectName(ADAPTER);
+    ObjectName channel = new ObjectName(CHANNEL);
+    ObjectName workflow = new ObjectName(WORKFLOW);
+    assertTrue(StateHistory.inScope(Collections.emptyList()).test(adapter));
+    assertTrue(StateHistory.inScope(Arrays.asList("MyAdapter")).test(adapter));
+    assertTrue(StateHistory.inScope(Arrays.asList("MyAdapter")).test(workflow));
+    assertFalse(StateHistory.inScope(Arrays.asList("MyAdapter", "MyChannel")).test(adapter));
+    assertTrue(StateHistory.inScope(Arrays.asList("MyAdapter", "MyChannel")).test(channel));
+    assertTrue(StateHistory.inScope(Arrays.asList("MyAdapter", "MyChannel")).test(workflow));
+    assertFalse(StateHistory.inScope(Arrays.asList("MyAdapter", "MyChannel", "Other")).test(workflow));
+    assertFalse(StateHistory.inScope(Arrays.asList("Other")).test(channel));
+  }
+}
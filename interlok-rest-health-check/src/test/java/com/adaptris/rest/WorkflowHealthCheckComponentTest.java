@@ -3,18 +3,35 @@ package com.adaptris.rest;
 import static org.awaitility.Awaitility.await;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import javax.management.Attribute;
+import javax.management.AttributeChangeNotification;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import org.apache.commons.lang3.StringUtils;
@@ -35,6 +52,7 @@ import com.adaptris.core.http.jetty.JettyConstants;
 import com.adaptris.core.runtime.AdapterManager;
 import com.adaptris.rest.healthcheck.AdapterState;
 import com.adaptris.rest.util.JmxMBeanHelper;
+import com.adaptris.rest.util.MBeanAttributes;
 
 public class WorkflowHealthCheckComponentTest {
 
@@ -63,6 +81,25 @@ public class WorkflowHealthCheckComponentTest {
     healthCheck.toString(states);
   }
 
+  @Test
+  public void testErrorFromMarshaller() throws Exception {
+    AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+    message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    XStreamJsonMarshaller mockMarshaller = Mockito.mock(XStreamJsonMarshaller.class);
+    doThrow(new CoreException("Expected")).when(mockMarshaller).marshal(any(), any(Writer.class));
+    wrapper.healthCheck().setMarshaller(mockMarshaller);
+    try {
+      wrapper.start();
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
   @Test
   public void testNoMBeans() throws Exception {
     AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
@@ -117,7 +154,7 @@ public class WorkflowHealthCheckComponentTest {
     TestConsumer testConsumer = wrapper.testConsumer();
 
     doThrow(new Exception("Expected"))
-        .when(mockJmxHelper).getStringAttribute(anyString(), any());
+        .when(mockJmxHelper).getAttributes(anyCollection(), any());
 
     try {
       wrapper.start();
@@ -243,6 +280,462 @@ public class WorkflowHealthCheckComponentTest {
     }
   }
 
+  @Test
+  public void testReadiness_NestedPath() throws Exception {
+    AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+    message.addMessageHeader(PATH_KEY, "/k8s/health/ready");
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.path", "/k8s/health/*");
+    try {
+      wrapper.start(config);
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertEquals("", testConsumer.payload);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_Scoped() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(false);
+    JmxMBeanHelper mockJmxHelper = wrapper.jmxHelper();
+    TestConsumer testConsumer = wrapper.testConsumer();
+    try {
+      wrapper.start();
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/" + CHANNEL_ID + "/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains("is not started"));
+
+      testConsumer.payload = null;
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/" + CHANNEL_ID + "/" + WORKFLOW_ID1);
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains(ADAPTER_ID));
+      assertTrue(testConsumer.payload.contains(CHANNEL_ID));
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID1));
+      assertFalse(testConsumer.payload.contains(WORKFLOW_ID2));
+
+      // No wildcard walk of the adapters.
+      verify(mockJmxHelper, never()).getMBeans(anyString());
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_ScopedAdapter() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    try {
+      wrapper.start();
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertEquals("", testConsumer.payload);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testScoped_NotFound() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    try {
+      wrapper.start();
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/NoSuchChannel");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testScoped_IdLooksLikeRoute() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    try {
+      wrapper.start();
+      // A channel called "alive", rather than the liveness probe.
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/alive");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, testConsumer.httpStatus);
+
+      // A workflow called "ready", rather than the channel's readiness.
+      testConsumer.isError = false;
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/" + CHANNEL_ID + "/%72eady");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testScoped_ChildVanished() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    // The channel is there, but its workflows are unregistered while we look at them.
+    doThrow(new InstanceNotFoundException(WORKFLOW_OBJECT_NAME_1))
+        .when(wrapper.jmxHelper()).getAttributes(anyCollection(), any());
+    try {
+      wrapper.start();
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/" + CHANNEL_ID + "/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testHealthCheck_NotModified() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    JmxMBeanHelper mockJmxHelper = wrapper.jmxHelper();
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.cache.max-age-ms", "60000");
+    try {
+      wrapper.start(config);
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      String etag = WorkflowServicesConsumer.getResponseHeader(message, WorkflowServicesConsumer.HEADER_ETAG);
+      assertNotNull(etag);
+
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+      message.addMessageHeader("http.header.If-None-Match", "\"something-else\", " + etag);
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, testConsumer.httpStatus);
+      assertEquals("", testConsumer.payload);
+      verify(mockJmxHelper, times(1)).getMBeans(anyString());
+
+      wrapper.healthCheck().getStateCache().invalidate();
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+      message.addMessageHeader("http.header.If-None-Match", etag);
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertNotEquals(etag, WorkflowServicesConsumer.getResponseHeader(message, WorkflowServicesConsumer.HEADER_ETAG));
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID1));
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testEvents_NotEnabled() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    try {
+      wrapper.start();
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/events");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testStreamEvents() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.events.enabled", "true");
+    config.setProperty("rest.health-check.events.heartbeat-ms", "50");
+    try {
+      wrapper.start(config);
+      StateEventPublisher publisher = wrapper.healthCheck().getEventPublisher();
+      StateEventPublisher.Subscription subscription = publisher.subscribe();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Thread streamer = new Thread(() -> {
+        try {
+          wrapper.healthCheck().streamEvents(subscription, out);
+        } catch (Exception e) {
+        }
+      });
+      streamer.start();
+      publisher.publish(new ObjectName(WORKFLOW_OBJECT_NAME_1), WORKFLOW_ID1, "StoppedState", "StartedState");
+      await().atMost(Durations.FIVE_SECONDS).until(() -> out.toString("UTF-8").contains(": keep-alive"));
+      subscription.close();
+      streamer.join(5000);
+      assertFalse(streamer.isAlive());
+      String stream = out.toString("UTF-8");
+      assertTrue(stream.startsWith(": connected\n\n"));
+      assertTrue(stream.contains("event: state\ndata: "));
+      assertTrue(stream.contains(WORKFLOW_ID1));
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_NotStable() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.ready.stable-ms", "60000");
+    try {
+      wrapper.start(config);
+      wrapper.healthCheck().getStateHistory().record(
+          new ObjectName("com.adaptris:type=Workflow,adapter=OtherAdapter,channel=OtherChannel,id=OtherWorkflow"),
+          "StartedState", "StoppedState", System.currentTimeMillis());
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains("OtherWorkflow is not stable"));
+
+      // Our own adapter doesn't care.
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/" + ADAPTER_ID + "/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testHistory() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.history.enabled", "true");
+    try {
+      wrapper.start(config);
+      StateHistory history = wrapper.healthCheck().getStateHistory();
+      history.record(new ObjectName(WORKFLOW_OBJECT_NAME_1), "StoppedState", "StartedState", System.currentTimeMillis());
+      history.record(new ObjectName(CHANNEL_OBJECT_NAME), "StoppedState", "StartedState", System.currentTimeMillis());
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/history");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID1));
+      assertTrue(testConsumer.payload.contains(CHANNEL_ID));
+
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY,
+          "/workflow-health-check/" + ADAPTER_ID + "/" + CHANNEL_ID + "/" + WORKFLOW_ID1 + "/history");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID1));
+      assertFalse(testConsumer.payload.contains("\"type\":\"Channel\""));
+
+      // History without events doesn't mean anyone can subscribe.
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/events");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testLiveness_Progress() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.progress.window-ms", "60000");
+    try {
+      wrapper.start(config);
+      assertNotNull(wrapper.healthCheck().getProgressSampler());
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/alive");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertFalse(testConsumer.isError);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_Cached() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(false);
+    JmxMBeanHelper mockJmxHelper = wrapper.jmxHelper();
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.cache.max-age-ms", "60000");
+    try {
+      wrapper.start(config);
+      for (int i = 0; i < 3; i++) {
+        testConsumer.payload = null;
+        AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+        message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+        wrapper.healthCheck().onAdaptrisMessage(message);
+        assertTrue(testConsumer.payload.contains(WORKFLOW_ID1 + " is not started")
+            || testConsumer.payload.contains(WORKFLOW_ID2 + " is not started"));
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+      }
+      verify(mockJmxHelper, times(1)).getMBeans(anyString());
+      assertEquals(1, wrapper.healthCheck().getStateCache().getRebuilds().get());
+
+      // A change from who knows where means the next request has to look again.
+      wrapper.healthCheck().getMbeanWatcher().handleNotification(
+          new AttributeChangeNotification(this, 1, 0, "", COMPONENT_STATE, String.class.getName(), "", ""), null);
+      testConsumer.payload = null;
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID1));
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      verify(mockJmxHelper, times(2)).getMBeans(anyString());
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_CachedUpdate() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(false);
+    JmxMBeanHelper mockJmxHelper = wrapper.jmxHelper();
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.cache.max-age-ms", "60000");
+    try {
+      wrapper.start(config);
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+
+      // Only the workflow that changed is looked at again.
+      ObjectName workflow = new ObjectName(WORKFLOW_OBJECT_NAME_1);
+      AttributeList started = new AttributeList();
+      started.add(new Attribute(COMPONENT_STATE, StartedState.getInstance()));
+      Mockito.doReturn(new MBeanAttributes(workflow, started)).when(mockJmxHelper).getAttributes(workflow, COMPONENT_STATE);
+      wrapper.healthCheck().getMbeanWatcher().handleNotification(
+          new AttributeChangeNotification(this, 1, 0, "", COMPONENT_STATE, String.class.getName(), "", ""), workflow);
+      testConsumer.payload = null;
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID2 + " is not started"));
+      verify(mockJmxHelper, times(1)).getMBeans(anyString());
+      assertEquals(1, wrapper.healthCheck().getStateCache().getRebuilds().get());
+      assertEquals(1, wrapper.healthCheck().getStateCache().getUpdates().get());
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_Parallel() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.timeout-ms", "5000");
+    try {
+      wrapper.start(config);
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertEquals(HttpURLConnection.HTTP_OK, testConsumer.httpStatus);
+      assertEquals("", testConsumer.payload);
+
+      testConsumer.payload = null;
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.payload.contains(CHANNEL_ID));
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID1));
+      assertTrue(testConsumer.payload.contains(WORKFLOW_ID2));
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_ParallelTimeout() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    JmxMBeanHelper mockJmxHelper = wrapper.jmxHelper();
+    TestConsumer testConsumer = wrapper.testConsumer();
+    // A channel that's stuck (e.g. mid restart).
+    when(mockJmxHelper.getAttributes(any(ObjectName.class), any())).thenAnswer((invocation) -> {
+      Thread.sleep(10000);
+      return null;
+    });
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.timeout-ms", "250");
+    try {
+      wrapper.start(config);
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+      long start = System.currentTimeMillis();
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains(CHANNEL_ID + " is not started"));
+      assertTrue(testConsumer.payload.contains("\"slowest\": [\"" + CHANNEL_ID + " (250ms)\"]"));
+
+      testConsumer.payload = null;
+      message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check");
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(testConsumer.payload.contains(WorkflowHealthCheckComponent.UNKNOWN_STATE));
+      // It's still stuck from last time, so it's not asked again.
+      verify(mockJmxHelper, times(1)).getAttributes(any(ObjectName.class), any());
+    } finally {
+      wrapper.destroy();
+    }
+  }
+
+  @Test
+  public void testReadiness_ParallelRejected() throws Exception {
+    MockedHealthCheckWrapper wrapper = new MockedHealthCheckWrapper().build(true);
+    TestConsumer testConsumer = wrapper.testConsumer();
+    Properties config = new Properties();
+    config.setProperty("rest.health-check.timeout-ms", "5000");
+    config.setProperty("rest.health-check.threads", "1");
+    config.setProperty("rest.health-check.queue-size", "1");
+    CountDownLatch blocked = new CountDownLatch(1);
+    try {
+      wrapper.start(config);
+      // Something else has the thread, and the queue is full.
+      wrapper.healthCheck().getExecutor().execute(() -> {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+        }
+      });
+      wrapper.healthCheck().getExecutor().execute(() -> {
+      });
+      AdaptrisMessage message = AdaptrisMessageFactory.getDefaultInstance().newMessage();
+      message.addMessageHeader(PATH_KEY, "/workflow-health-check/ready");
+      long start = System.currentTimeMillis();
+      wrapper.healthCheck().onAdaptrisMessage(message);
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, testConsumer.httpStatus);
+      assertTrue(testConsumer.payload.contains(CHANNEL_ID + " is not started"));
+    } finally {
+      blocked.countDown();
+      wrapper.destroy();
+    }
+  }
+
   // Can't do this in @Before / @After since I want to control the mocking behaviour.
   private class MockedHealthCheckWrapper {
 
@@ -274,36 +767,26 @@ public class WorkflowHealthCheckComponentTest {
       workflowObjectNames.add(workflowObjectName2);
 
 
-      when(mockJmxHelper.getMBeans(anyString())).thenReturn(adapterInstances);
-      when(mockJmxHelper.getStringAttribute(adapterObjectName.toString(), UNIQUE_ID))
-          .thenReturn(ADAPTER_ID);
-      when(mockJmxHelper.getStringAttributeClassName(adapterObjectName.toString(), COMPONENT_STATE))
-          .thenReturn(StartedState.class.getSimpleName());
-
-      when(mockJmxHelper.getObjectSetAttribute(adapterObjectName.toString(), CHILDREN_ATTRIBUTE))
-          .thenReturn(channelObjectNames);
-      when(mockJmxHelper.getStringAttribute(channelObjectName.toString(), UNIQUE_ID))
-          .thenReturn(CHANNEL_ID);
-      when(mockJmxHelper.getStringAttributeClassName(channelObjectName.toString(), COMPONENT_STATE))
-          .thenReturn(StartedState.class.getSimpleName());
-
-      when(mockJmxHelper.getObjectSetAttribute(channelObjectName.toString(), CHILDREN_ATTRIBUTE))
-          .thenReturn(workflowObjectNames);
-
-      String workflowState = StartedState.class.getSimpleName();
-      if (!workflowsAreStarted) {
-        workflowState = StoppedState.class.getSimpleName();
-      }
+      Map<ObjectName, AttributeList> attributes = new HashMap<>();
+      attributes.put(adapterObjectName, attributes(ADAPTER_ID, StartedState.getInstance(), channelObjectNames));
+      attributes.put(channelObjectName, attributes(CHANNEL_ID, StartedState.getInstance(), workflowObjectNames));
+      Object state = workflowsAreStarted ? StartedState.getInstance() : StoppedState.getInstance();
+      attributes.put(workflowObjectName1, attributes(WORKFLOW_ID1, state, null));
+      attributes.put(workflowObjectName2, attributes(WORKFLOW_ID2, state, null));
 
-      when(mockJmxHelper.getStringAttribute(workflowObjectName1.toString(), UNIQUE_ID))
-          .thenReturn(WORKFLOW_ID1);
-      when(mockJmxHelper.getStringAttributeClassName(workflowObjectName1.toString(),
-          COMPONENT_STATE)).thenReturn(workflowState);
-
-      when(mockJmxHelper.getStringAttribute(workflowObjectName2.toString(), UNIQUE_ID))
-          .thenReturn(WORKFLOW_ID2);
-      when(mockJmxHelper.getStringAttributeClassName(workflowObjectName2.toString(),
-            COMPONENT_STATE)).thenReturn(workflowState);
+      when(mockJmxHelper.getMBeans(anyString())).thenReturn(adapterInstances);
+      when(mockJmxHelper.getAttributes(anyCollection(), any())).thenAnswer((invocation) -> {
+        Collection<ObjectName> names = invocation.getArgument(0);
+        Map<ObjectName, MBeanAttributes> result = new LinkedHashMap<>();
+        for (ObjectName name : names) {
+          result.put(name, new MBeanAttributes(name, lookup(attributes, name)));
+        }
+        return result;
+      });
+      when(mockJmxHelper.getAttributes(any(ObjectName.class), any())).thenAnswer((invocation) -> {
+        ObjectName name = invocation.getArgument(0);
+        return new MBeanAttributes(name, lookup(attributes, name));
+      });
 
       healthCheck = new WorkflowHealthCheckComponent();
       testConsumer = new TestConsumer();
@@ -313,8 +796,30 @@ public class WorkflowHealthCheckComponentTest {
     }
 
 
+    private AttributeList lookup(Map<ObjectName, AttributeList> attributes, ObjectName name)
+        throws InstanceNotFoundException {
+      if (!attributes.containsKey(name)) {
+        throw new InstanceNotFoundException(name.toString());
+      }
+      return attributes.get(name);
+    }
+
+    private AttributeList attributes(String id, Object state, Set<ObjectName> children) {
+      AttributeList list = new AttributeList();
+      list.add(new Attribute(UNIQUE_ID, id));
+      list.add(new Attribute(COMPONENT_STATE, state));
+      if (children != null) {
+        list.add(new Attribute(CHILDREN_ATTRIBUTE, children));
+      }
+      return list;
+    }
+
     public void start() throws Exception {
-      healthCheck.init(new Properties());
+      start(new Properties());
+    }
+
+    public void start(Properties config) throws Exception {
+      healthCheck.init(config);
       healthCheck.start();
 
     }
@@ -1,5 +1,6 @@
 package com.adaptris.rest.metrics.jvm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -8,6 +9,7 @@ import java.util.Properties;
 
 import com.adaptris.core.management.MgmtComponentImpl;
 import com.adaptris.rest.metrics.MetricBinder;
+import com.adaptris.rest.metrics.MeterRegistryBindings;
 import com.adaptris.rest.metrics.MetricProviders;
 
 import io.github.mweirauch.micrometer.jvm.extras.ProcessMemoryMetrics;
@@ -44,7 +46,9 @@ public class JvmMetricsGenerator extends MgmtComponentImpl implements MetricBind
       FileDescriptorMetrics.class,
       UptimeMetrics.class);
 
-  private volatile boolean metricsRegistered;
+  // Some binders (e.g. GC) register listeners that need closing once the registry has gone.
+  private final MeterRegistryBindings<List<MeterBinder>> bindings =
+      new MeterRegistryBindings<>(JvmMetricsGenerator::close);
   
   public JvmMetricsGenerator() {
     this(Collections.emptyList());
@@ -56,24 +60,38 @@ public class JvmMetricsGenerator extends MgmtComponentImpl implements MetricBind
 
   @Override
   public void bindTo(MeterRegistry registry) {
-    if(!metricsRegistered) {
-      meterBinders.forEach( binder -> {
-        try {
-          log.trace("Generating metrics from meter: {}", binder.getSimpleName());
-          binder.getDeclaredConstructor().newInstance().bindTo(registry);
-        } catch (Exception e) {
-          log.warn("Could not collect metrics from binder: {}", binder.getSimpleName(), e);
-        }
-      });
-      metricsRegistered = true;
-    }
+    // The meters update themselves, so each registry only needs binding once.
+    bindings.bind(registry, this::bind);
   }
-  
+
+  private List<MeterBinder> bind(MeterRegistry registry) {
+    List<MeterBinder> bound = new ArrayList<>(meterBinders.size());
+    meterBinders.forEach( binder -> {
+      try {
+        log.trace("Generating metrics from meter: {}", binder.getSimpleName());
+        MeterBinder instance = binder.getDeclaredConstructor().newInstance();
+        instance.bindTo(registry);
+        bound.add(instance);
+      } catch (Exception e) {
+        log.warn("Could not collect metrics from binder: {}", binder.getSimpleName(), e);
+      }
+    });
+    return bound;
+  }
+
+  private static void close(List<MeterBinder> bound) {
+    bound.stream().filter(AutoCloseable.class::isInstance).forEach(binder -> {
+      try {
+        ((AutoCloseable) binder).close();
+      } catch (Exception e) {
+        // Nothing we can do, and we're finished with it anyway.
+      }
+    });
+  }
+
   @Override
   public void init(Properties config) throws Exception {
     MetricProviders.addProvider(this);
-    
-    metricsRegistered = false;
   }
 
   @Override
@@ -86,5 +104,7 @@ public class JvmMetricsGenerator extends MgmtComponentImpl implements MetricBind
 
   @Override
   public void destroy() throws Exception {
+    MetricProviders.removeProvider(this);
+    bindings.clear();
   }
 }
@@ -1,5 +1,7 @@
 package com.adaptris.rest;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -7,6 +9,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.adaptris.rest.metrics.MetricProviders;
 import com.adaptris.rest.metrics.jvm.JvmMetricsGenerator;
 
 import io.micrometer.core.instrument.Meter;
@@ -52,5 +55,35 @@ public class JvmMetricsGeneratorTest {
     for(Meter m : mockRegistry.getMeters())
       assertNotNull(m.measure().iterator().next().getValue());
   }
-  
+
+  @Test
+  public void testBindMultipleRegistries() throws Exception {
+    SimpleMeterRegistry first = new SimpleMeterRegistry();
+    SimpleMeterRegistry second = new SimpleMeterRegistry();
+    generator.bindTo(first);
+    generator.bindTo(second);
+
+    assertTrue(first.getMeters().size() > 0);
+    assertEquals(first.getMeters().size(), second.getMeters().size());
+  }
+
+  @Test
+  public void testRebindClosedRegistry() throws Exception {
+    SimpleMeterRegistry first = new SimpleMeterRegistry();
+    generator.bindTo(first);
+    first.close();
+    mockRegistry = new SimpleMeterRegistry();
+    generator.bindTo(mockRegistry);
+
+    assertTrue(mockRegistry.getMeters().size() > 0);
+  }
+
+  @Test
+  public void testProviderLifecycle() throws Exception {
+    generator.init(null);
+    assertEquals(1, MetricProviders.getProviders().stream().filter(p -> p == generator).count());
+    generator.destroy();
+    assertFalse(MetricProviders.getProviders().contains(generator));
+  }
+
 }
@@ -1,9 +1,9 @@
 package com.adaptris.rest.metrics.interlok;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.ObjectName;
 
@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 
 import com.adaptris.core.management.MgmtComponentImpl;
 import com.adaptris.profiler.jmx.TimedThroughputMetricMBean;
+import com.adaptris.rest.metrics.MeterRegistryBindings;
 import com.adaptris.rest.metrics.MetricBinder;
 import com.adaptris.rest.metrics.MetricProviders;
 import com.adaptris.rest.util.JmxMBeanHelper;
@@ -41,36 +42,37 @@ public class InterlokProfilerMetricsGenerator extends MgmtComponentImpl implemen
   private static final String COMPONENT_TAG = "component";
   private static final String WORKFLOW_TAG = "workflow";
   
-  private Map<String, Meter> meterMap;
+  // The meters for each registry; they're per registry, so we can't share them.
+  private final MeterRegistryBindings<Map<String, Meter>> meterMaps = new MeterRegistryBindings<>(Map::clear);
     
   @Getter
   @Setter
   private JmxMBeanHelper jmxMBeanHelper;
   
   public InterlokProfilerMetricsGenerator() {
-    meterMap = new HashMap<>();
     setJmxMBeanHelper(new JmxMBeanHelper());
   }
   
   @Override
   public void bindTo(MeterRegistry registry) throws Exception {
+    Map<String, Meter> meterMap = meterMaps.bind(registry, r -> new ConcurrentHashMap<>());
     Set<ObjectName> queryMBeans = getJmxMBeanHelper().getMBeanNames(PROFILER_OBJECT_NAME);
     queryMBeans.forEach( object -> {
       TimedThroughputMetricMBean mBean = getJmxMBeanHelper().proxyMBean(object, TimedThroughputMetricMBean.class);
       // If no workflow ID, then this may be an event or the base workflow rest HTTP acceptor service so ignore.
       if(mBean.getWorkflowId() != null) {
-        Counter countCounter = getOrCreateCountMeter(METRIC_COUNT + mBean.getUniqueId(), object, mBean, registry);
+        Counter countCounter = getOrCreateCountMeter(meterMap, METRIC_COUNT + mBean.getUniqueId(), object, mBean, registry);
         countCounter.increment(mBean.getMessageCount() - countCounter.count());
         
-        Counter failCountCounter = getOrCreateFailedCountMeter(METRIC_FAIL_COUNT + mBean.getUniqueId(), object, mBean, registry);
+        Counter failCountCounter = getOrCreateFailedCountMeter(meterMap, METRIC_FAIL_COUNT + mBean.getUniqueId(), object, mBean, registry);
         failCountCounter.increment(mBean.getFailedMessageCount() - failCountCounter.count());
         
-        getOrCreateNanosMeter(METRIC_AVG_NANOS + mBean.getUniqueId(), object, mBean, registry);
+        getOrCreateNanosMeter(meterMap, METRIC_AVG_NANOS + mBean.getUniqueId(), object, mBean, registry);
       }
     });
   }
   
-  private Gauge getOrCreateNanosMeter(String key, ObjectName object, TimedThroughputMetricMBean mBean, MeterRegistry registry) {
+  private Gauge getOrCreateNanosMeter(Map<String, Meter> meterMap, String key, ObjectName object, TimedThroughputMetricMBean mBean, MeterRegistry registry) {
     Gauge meter = (Gauge) meterMap.get(key);
     if(meter == null) {
       meter = Gauge.builder(object.getKeyProperty(COMPONENT_TYPE_PROPERTY) + METRIC_AVG_NANOS, 
@@ -86,7 +88,7 @@ public class InterlokProfilerMetricsGenerator extends MgmtComponentImpl implemen
     return meter;
   }
   
-  private Counter getOrCreateCountMeter(String key, ObjectName object, TimedThroughputMetricMBean mBean, MeterRegistry registry) {
+  private Counter getOrCreateCountMeter(Map<String, Meter> meterMap, String key, ObjectName object, TimedThroughputMetricMBean mBean, MeterRegistry registry) {
     Counter meter = (Counter) meterMap.get(key);
     if(meter == null) {
       meter = Counter.builder(object.getKeyProperty(COMPONENT_TYPE_PROPERTY) + METRIC_COUNT)
@@ -100,7 +102,7 @@ public class InterlokProfilerMetricsGenerator extends MgmtComponentImpl implemen
     return meter;
   }
   
-  private Counter getOrCreateFailedCountMeter(String key, ObjectName object, TimedThroughputMetricMBean mBean, MeterRegistry registry) {
+  private Counter getOrCreateFailedCountMeter(Map<String, Meter> meterMap, String key, ObjectName object, TimedThroughputMetricMBean mBean, MeterRegistry registry) {
     Counter meter = (Counter) meterMap.get(key);
     if(meter == null) {
       meter = Counter.builder(object.getKeyProperty(COMPONENT_TYPE_PROPERTY) + METRIC_FAIL_COUNT)
@@ -129,5 +131,7 @@ public class InterlokProfilerMetricsGenerator extends MgmtComponentImpl implemen
 
   @Override
   public void destroy() throws Exception {
+    MetricProviders.removeProvider(this);
+    meterMaps.clear();
   }
 }
@@ -133,5 +133,16 @@ public class InterlokProfilerMetricsGeneratorTest {
     assertTrue(scrape.contains("producer_fail_count_total"));
   }
 
+  @Test
+  public void testMultipleRegistries() throws Exception {
+    PrometheusMeterRegistry other = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    component.bindTo(meterRegistry);
+    component.bindTo(other);
+    component.bindTo(other);
+
+    assertEquals(6, meterRegistry.getMeters().size());
+    assertEquals(6, other.getMeters().size());
+  }
+
   
 }
\ No newline at end of file
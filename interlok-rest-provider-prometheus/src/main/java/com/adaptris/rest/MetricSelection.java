@@ -0,0 +1,136 @@
+package com.adaptris.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * Which of the metrics a scrape wants.
+ * <p>
+ * That's any combination of exact metric names (as the federation endpoint), metric name prefixes
+ * (e.g. everything that starts with {@code jvm_}), and a shard. Shards split the series that have
+ * the shard label (the workflow, by default) across a number of scrape targets, so that no single
+ * scrape has to render all of them; each label value is assigned a shard by a consistent hash, so
+ * changing the number of shards only moves the series that have to move. Series without the label
+ * only ever go to shard 0, so that they aren't scraped more than once.
+ * </p>
+ */
+final class MetricSelection {
+
+  static final MetricSelection EVERYTHING =
+      new MetricSelection(Collections.emptySet(), Collections.emptyList(), null, 0, 1);
+
+  private final Set<String> names;
+  private final List<String> prefixes;
+  private final String shardLabel;
+  private final int shard;
+  private final int shards;
+
+  /**
+   * @param names exact metric names, if empty then any name.
+   * @param prefixes metric name prefixes, if empty then any prefix.
+   * @param shardLabel the label that series are sharded by.
+   * @param shard which shard we want, from 0 to shards - 1.
+   * @param shards how many shards there are; 1 means no sharding.
+   */
+  MetricSelection(Set<String> names, List<String> prefixes, String shardLabel, int shard, int shards) {
+    if (shards < 1 || shard < 0 || shard >= shards) {
+      throw new IllegalArgumentException("Shard " + shard + " of " + shards + " doesn't exist");
+    }
+    this.names = names;
+    this.prefixes = prefixes;
+    this.shardLabel = shardLabel;
+    this.shard = shard;
+    this.shards = shards;
+  }
+
+  /**
+   * Whether this is worth caching; exact names are cheap to render, and too varied to cache.
+   */
+  boolean isCacheable() {
+    return names.isEmpty();
+  }
+
+  int getShards() {
+    return shards;
+  }
+
+  /**
+   * What identifies this selection in a cache.
+   */
+  String cacheKey() {
+    return String.join(",", prefixes) + "|" + shard + "/" + shards;
+  }
+
+  Enumeration<MetricFamilySamples> select(CollectorRegistry registry) {
+    Enumeration<MetricFamilySamples> all =
+        names.isEmpty() ? registry.metricFamilySamples() : registry.filteredMetricFamilySamples(names);
+    if (prefixes.isEmpty() && shards == 1) {
+      return all;
+    }
+    List<MetricFamilySamples> result = new ArrayList<>();
+    while (all.hasMoreElements()) {
+      MetricFamilySamples family = all.nextElement();
+      if (matches(family.name)) {
+        MetricFamilySamples sharded = shard(family);
+        if (!sharded.samples.isEmpty()) {
+          result.add(sharded);
+        }
+      }
+    }
+    return Collections.enumeration(result);
+  }
+
+  private boolean matches(String name) {
+    return prefixes.isEmpty() || prefixes.stream().anyMatch(name::startsWith);
+  }
+
+  private MetricFamilySamples shard(MetricFamilySamples family) {
+    if (shards == 1) {
+      return family;
+    }
+    List<Sample> samples = new ArrayList<>(family.samples.size());
+    for (Sample sample : family.samples) {
+      int index = sample.labelNames.indexOf(shardLabel);
+      String value = index >= 0 ? sample.labelValues.get(index) : null;
+      if (shardOf(value, shards) == shard) {
+        samples.add(sample);
+      }
+    }
+    return samples.size() == family.samples.size() ? family
+        : new MetricFamilySamples(family.name, family.unit, family.type, family.help, samples);
+  }
+
+  // Jump consistent hash (Lamping & Veach), so that going from n to n+1 shards only moves 1/(n+1)
+  // of the series.
+  static int shardOf(String value, int shards) {
+    if (value == null) {
+      return 0;
+    }
+    long key = mix(Objects.hashCode(value));
+    long b = -1;
+    long j = 0;
+    while (j < shards) {
+      b = j;
+      key = key * 2862933555777941757L + 1;
+      j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) b;
+  }
+
+  // String.hashCode() is stable, but doesn't spread well enough over 64 bits on its own.
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
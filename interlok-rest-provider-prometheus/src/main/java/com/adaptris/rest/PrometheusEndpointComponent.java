@@ -1,18 +1,54 @@
 package com.adaptris.rest;
 
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_BAD_REQUEST;
 import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_DEFAULT;
+import static com.adaptris.rest.WorkflowServicesConsumer.ERROR_NOT_FOUND;
+import static com.adaptris.rest.WorkflowServicesConsumer.HEADER_CONTENT_ENCODING;
+import static com.adaptris.rest.WorkflowServicesConsumer.HEADER_VARY;
+import static com.adaptris.rest.WorkflowServicesConsumer.OK_200;
+import static com.adaptris.rest.WorkflowServicesConsumer.addResponseHeader;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.http.jetty.JettyConstants;
+import com.adaptris.core.http.jetty.JettyWrapper;
+import com.adaptris.core.util.ManagedThreadFactory;
 import com.adaptris.rest.metrics.MetricProviders;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
 import io.micrometer.prometheus.PrometheusRenameFilter;
+import io.prometheus.client.exporter.common.TextFormat;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 
 @NoArgsConstructor
 public class PrometheusEndpointComponent  extends AbstractRestfulEndpoint {
@@ -21,6 +57,54 @@ public class PrometheusEndpointComponent  extends AbstractRestfulEndpoint {
 
   private static final String DEFAULT_PATH = "/prometheus/metrics/*";
 
+  private static final String BOOTSTRAP_REFRESH_KEY = "rest.prometheus.refresh-ms";
+
+  private static final String BOOTSTRAP_CACHE_KEY = "rest.prometheus.cache-ms";
+
+  // rest.prometheus.group.<name>=prefix,prefix
+  private static final String BOOTSTRAP_GROUP_PREFIX = "rest.prometheus.group.";
+
+  private static final String BOOTSTRAP_SHARD_LABEL_KEY = "rest.prometheus.shard-label";
+
+  private static final String DEFAULT_SHARD_LABEL = "workflow";
+
+  // The shard counts that the scrape jobs use; rest.prometheus.shards=3,4
+  private static final String BOOTSTRAP_SHARDS_KEY = "rest.prometheus.shards";
+
+  private static final String BOOTSTRAP_MAX_SHARDS_KEY = "rest.prometheus.max-shards";
+
+  private static final int DEFAULT_MAX_SHARDS = 64;
+
+  private static final Map<String, List<String>> DEFAULT_GROUPS;
+
+  static {
+    Map<String, List<String>> groups = new HashMap<>();
+    groups.put("jvm", Arrays.asList("jvm_", "process_", "system_"));
+    // The profiler metrics are named after the component type.
+    groups.put("interlok", Arrays.asList("workflow_", "consumer_", "producer_", "service_"));
+    DEFAULT_GROUPS = Collections.unmodifiableMap(groups);
+  }
+
+  private static final String PATH_KEY = JettyConstants.JETTY_URI;
+
+  private static final String HTTP_PARAM_SHARD = "http.param.shard";
+
+  private static final String HTTP_PARAM_SHARDS = "http.param.shards";
+
+  private static final String HTTP_HEADER_ACCEPT_ENCODING = "http.header.Accept-Encoding";
+
+  private static final String HTTP_HEADER_ACCEPT = "http.header.Accept";
+
+  // As the prometheus federation endpoint; name[]=a&name[]=b
+  private static final String NAME_PARAM = "name[]";
+
+  private static final String HTTP_PARAM_NAME = "http.param." + NAME_PARAM;
+
+  // What the response depends on.
+  private static final String VARY = "Accept, Accept-Encoding";
+
+  private static final String GZIP = "gzip";
+
   private static final transient boolean ADDITIONAL_DEBUG =
       BooleanUtils.toBoolean(System.getProperty("interlok.prometheus.debug", "false"));
 
@@ -31,20 +115,293 @@ public class PrometheusEndpointComponent  extends AbstractRestfulEndpoint {
   private transient final String acceptedFilter = ACCEPTED_FILTER;
 
   private PrometheusMeterRegistry prometheusRegistry;
-  
+
+  /**
+   * How often (in milliseconds) to refresh the metrics in the background.
+   * <p>
+   * If set, then the metric providers are bound to the registry on a background thread, and a
+   * scrape just returns what is already in the registry; if not set, then every scrape refreshes
+   * the metrics first. Either way, concurrent refreshes share the one that is already running.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Long refreshMs;
+
+  /**
+   * How long (in milliseconds) the rendered metrics may be served for.
+   * <p>
+   * If set, then the metrics are rendered once (along with a gzipped copy), and that is what every
+   * scrape gets until it is this old, or until the metrics are next refreshed in the background;
+   * if not set, then they are rendered for each scrape.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Long cacheMs;
+
+  /**
+   * The metric name prefixes for each group, as served on {@code <path>/<group>}.
+   * <p>
+   * By default there is {@code jvm} and {@code interlok}; each {@code rest.prometheus.group.<name>}
+   * property adds (or replaces) a group with its comma separated list of prefixes.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Map<String, List<String>> groups = DEFAULT_GROUPS;
+
+  /**
+   * The label that series are sharded by when a scrape asks for {@code shard} of {@code shards};
+   * defaults to {@code workflow}.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient String shardLabel = DEFAULT_SHARD_LABEL;
+
+  /**
+   * The number of shards that the scrape jobs are configured with.
+   * <p>
+   * Only these are cached, so that a client can't fill the cache by asking for every possible
+   * shard; any other number of shards is still served, but rendered for each scrape.
+   * </p>
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Set<Integer> cachedShards = Collections.emptySet();
+
+  /**
+   * The most shards that a scrape may ask for; defaults to 64.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient int maxShards = DEFAULT_MAX_SHARDS;
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient final AtomicLong refreshes = new AtomicLong();
+
+  @Getter(AccessLevel.PACKAGE)
+  private transient final AtomicLong renders = new AtomicLong();
+
+  // One for each content type and selection; since only groups and configured shard counts are
+  // cached, there's a fixed number of these.
+  private transient final Map<String, Exposition> expositions = new ConcurrentHashMap<>();
+
+  private transient final AtomicReference<CompletableFuture<Void>> inFlight = new AtomicReference<>();
+
+  private transient ScheduledExecutorService scheduler;
+
   @Override
   public void init(Properties config) throws Exception {
+    super.init(config);
     prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
     prometheusRegistry.config().meterFilter(new PrometheusRenameFilter());
+    setRefreshMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_REFRESH_KEY))
+        .map(Long::valueOf).orElse(null));
+    setCacheMs(Optional.ofNullable(config.getProperty(BOOTSTRAP_CACHE_KEY))
+        .map(Long::valueOf).orElse(null));
+    Map<String, List<String>> configured = new HashMap<>(DEFAULT_GROUPS);
+    for (String key : config.stringPropertyNames()) {
+      if (key.startsWith(BOOTSTRAP_GROUP_PREFIX)) {
+        configured.put(key.substring(BOOTSTRAP_GROUP_PREFIX.length()),
+            Arrays.asList(StringUtils.stripAll(StringUtils.split(config.getProperty(key), ','))));
+      }
+    }
+    setGroups(Collections.unmodifiableMap(configured));
+    setShardLabel(config.getProperty(BOOTSTRAP_SHARD_LABEL_KEY, DEFAULT_SHARD_LABEL));
+    setMaxShards(Optional.ofNullable(config.getProperty(BOOTSTRAP_MAX_SHARDS_KEY))
+        .map(Integer::valueOf).orElse(DEFAULT_MAX_SHARDS));
+    Set<Integer> shards = new HashSet<>();
+    for (String count : StringUtils.split(config.getProperty(BOOTSTRAP_SHARDS_KEY, ""), ',')) {
+      shards.add(Integer.valueOf(count.trim()));
+    }
+    setCachedShards(Collections.unmodifiableSet(shards));
   }
-  
+
+  @Override
+  public void start() throws Exception {
+    super.start();
+    if (getRefreshMs() != null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ManagedThreadFactory(friendlyName()));
+      scheduler.scheduleWithFixedDelay(() -> {
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          // Otherwise we'd never be scheduled again.
+          log.warn("Metric refresh failed, will try again in {}ms", getRefreshMs(), e);
+        }
+      }, 0, getRefreshMs(), TimeUnit.MILLISECONDS);
+    }
+  }
+
   @Override
   public void stop() throws Exception {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    expositions.clear();
     prometheusRegistry.close();
   }
-  
+
   @Override
   public void onAdaptrisMessage(AdaptrisMessage message, Consumer<AdaptrisMessage> success, Consumer<AdaptrisMessage> failure) {
+    try {
+      String contentType = TextFormat.chooseContentType(message.getMetadataValue(HTTP_HEADER_ACCEPT));
+      MetricSelection selection = selection(message);
+      // Cached or not, the format depends on Accept, and the consumer may compress it.
+      addResponseHeader(message, HEADER_VARY, VARY);
+      if (getCacheMs() != null && isCached(selection)) {
+        sendCached(message, contentType, selection);
+        success.accept(message);
+        return;
+      }
+      // Even in the background, the first scrape shouldn't be empty just because it got in first.
+      if (scheduler == null || refreshes.get() == 0) {
+        refresh();
+      }
+      try (Writer writer = message.getWriter(StandardCharsets.UTF_8.name())) {
+        scrape(writer, contentType, selection);
+      }
+      getConsumer().doResponse(message, message, contentType, OK_200);
+      success.accept(message);
+    } catch (RequestRejectedException ex) {
+      log.debug(ex.getMessage());
+      getConsumer().doErrorResponse(message, ex, ex.getHttpStatus());
+      failure.accept(message);
+    } catch (Exception ex) {
+      getConsumer().doErrorResponse(message, ex, ERROR_DEFAULT);
+      failure.accept(message);
+    }
+  }
+
+  // Every value of name[]; the metadata only has the first, so use the request if we can.
+  private static Set<String> requestedNames(AdaptrisMessage message) {
+    JettyWrapper wrapper = JettyWrapper.unwrap(message);
+    HttpServletRequest request = wrapper != null ? wrapper.getRequest() : null;
+    String[] values = request != null ? request.getParameterValues(NAME_PARAM)
+        : StringUtils.split(message.getMetadataValue(HTTP_PARAM_NAME), ',');
+    if (values == null || values.length == 0) {
+      return Collections.emptySet();
+    }
+    return new LinkedHashSet<>(Arrays.asList(values));
+  }
+
+  // Anything after our own path is the group; the shard is from the query.
+  private MetricSelection selection(AdaptrisMessage message) throws RequestRejectedException {
+    List<String> prefixes = Collections.emptyList();
+    String group = groupName(message.getMetadataValue(PATH_KEY));
+    if (group != null) {
+      prefixes = getGroups().get(group);
+      if (prefixes == null) {
+        throw new RequestRejectedException("No metric group called " + group, ERROR_NOT_FOUND);
+      }
+    }
+    String shard = message.getMetadataValue(HTTP_PARAM_SHARD);
+    String shards = message.getMetadataValue(HTTP_PARAM_SHARDS);
+    if ((shard == null) != (shards == null)) {
+      throw new RequestRejectedException("shard and shards must be used together", ERROR_BAD_REQUEST);
+    }
+    Set<String> names = requestedNames(message);
+    if (group == null && shards == null && names.isEmpty()) {
+      return MetricSelection.EVERYTHING;
+    }
+    try {
+      int count = shards != null ? Integer.parseInt(shards) : 1;
+      if (count > getMaxShards()) {
+        throw new RequestRejectedException("No more than " + getMaxShards() + " shards", ERROR_BAD_REQUEST);
+      }
+      return new MetricSelection(names, prefixes, getShardLabel(),
+          shard != null ? Integer.parseInt(shard) : 0, count);
+    } catch (IllegalArgumentException e) {
+      throw new RequestRejectedException("Invalid shard [" + shard + "] of [" + shards + "]",
+          ERROR_BAD_REQUEST);
+    }
+  }
+
+  private boolean isCached(MetricSelection selection) {
+    return selection.isCacheable()
+        && (selection.getShards() == 1 || getCachedShards().contains(selection.getShards()));
+  }
+
+  private String groupName(String path) {
+    String root = StringUtils.removeEnd(configuredUrlPath(), "*");
+    if (path == null || !path.startsWith(root)) {
+      return null;
+    }
+    return StringUtils.trimToNull(StringUtils.strip(path.substring(root.length()), "/"));
+  }
+
+  private void scrape(Writer writer, String contentType, MetricSelection selection) throws IOException {
+    TextFormat.writeFormat(contentType, writer, selection.select(prometheusRegistry.getPrometheusRegistry()));
+  }
+
+  // The bytes are shared by every scrape until they expire; the message just holds on to them.
+  private void sendCached(AdaptrisMessage message, String contentType, MetricSelection selection)
+      throws Exception {
+    Exposition current = exposition(contentType, selection);
+    String encoding = HttpRestWorkflowServicesConsumer.selectEncoding(message.getMetadataValue(HTTP_HEADER_ACCEPT_ENCODING));
+    if (GZIP.equals(encoding)) {
+      message.setPayload(current.gzipped);
+      addResponseHeader(message, HEADER_CONTENT_ENCODING, GZIP);
+    } else {
+      message.setPayload(current.plain);
+    }
+    getConsumer().doResponse(message, message, contentType, OK_200);
+  }
+
+  // Concurrent scrapes of an expired exposition wait for the one render.
+  private Exposition exposition(String contentType, MetricSelection selection) throws IOException {
+    String key = contentType + "|" + selection.cacheKey();
+    Exposition current = expositions.get(key);
+    if (isValid(current)) {
+      return current;
+    }
+    synchronized (this) {
+      current = expositions.get(key);
+      if (isValid(current)) {
+        return current;
+      }
+      if (scheduler == null || refreshes.get() == 0) {
+        refresh();
+      }
+      current = render(contentType, selection, refreshes.get());
+      expositions.put(key, current);
+      return current;
+    }
+  }
+
+  private boolean isValid(Exposition e) {
+    if (e == null || System.nanoTime() - e.rendered >= TimeUnit.MILLISECONDS.toNanos(getCacheMs())) {
+      return false;
+    }
+    // In the background, a refresh means there's something new to render.
+    return scheduler == null || e.generation == refreshes.get();
+  }
+
+  private Exposition render(String contentType, MetricSelection selection, long generation)
+      throws IOException {
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(plain, StandardCharsets.UTF_8)) {
+      scrape(writer, contentType, selection);
+    }
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream(Math.max(32, plain.size() / 4));
+    try (OutputStream out = new GZIPOutputStream(gzipped)) {
+      plain.writeTo(out);
+    }
+    renders.incrementAndGet();
+    return new Exposition(plain.toByteArray(), gzipped.toByteArray(), generation);
+  }
+
+  // Anyone who turns up while a refresh is running just waits for that one, rather than starting
+  // their own; this also means that providers are never bound concurrently.
+  void refresh() {
+    CompletableFuture<Void> mine = new CompletableFuture<>();
+    CompletableFuture<Void> running = inFlight.compareAndExchange(null, mine);
+    if (running != null) {
+      running.join();
+      return;
+    }
     try {
       MetricProviders.getProviders().forEach(provider -> {
         try {
@@ -55,13 +412,23 @@ public class PrometheusEndpointComponent  extends AbstractRestfulEndpoint {
           exceptionLogging(ADDITIONAL_DEBUG, "Stack trace from metric gathering failure :", e);
         }
       });
-      message.setContent(prometheusRegistry.scrape(), message.getContentEncoding());
+      refreshes.incrementAndGet();
+    } finally {
+      inFlight.set(null);
+      mine.complete(null);
+    }
+  }
 
-      getConsumer().doResponse(message, message);
-      success.accept(message);
-    } catch (Exception ex) {
-      getConsumer().doErrorResponse(message, ex, ERROR_DEFAULT);
-      failure.accept(message);
+  private static final class Exposition {
+    private final byte[] plain;
+    private final byte[] gzipped;
+    private final long generation;
+    private final long rendered = System.nanoTime();
+
+    private Exposition(byte[] plain, byte[] gzipped, long generation) {
+      this.plain = plain;
+      this.gzipped = gzipped;
+      this.generation = generation;
     }
   }
 
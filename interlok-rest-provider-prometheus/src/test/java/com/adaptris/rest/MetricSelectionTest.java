@@ -0,0 +1,120 @@
+package com.adaptris.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+
+public class MetricSelectionTest {
+
+  private static final int WORKFLOWS = 100;
+
+  private PrometheusMeterRegistry registry;
+
+  @Before
+  public void setUp() throws Exception {
+    registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    Gauge.builder("jvm.threads.live", () -> 1).register(registry);
+    for (int i = 0; i < WORKFLOWS; i++) {
+      Counter.builder("workflow.count").tag("workflow", "workflow-" + i).register(registry);
+    }
+  }
+
+  @Test
+  public void testEverything() throws Exception {
+    assertEquals(Arrays.asList("jvm_threads_live", "workflow_count"), familyNames(MetricSelection.EVERYTHING));
+    assertTrue(MetricSelection.EVERYTHING.isCacheable());
+  }
+
+  @Test
+  public void testPrefixes() throws Exception {
+    MetricSelection jvm = new MetricSelection(Collections.emptySet(), Arrays.asList("jvm_"), "workflow", 0, 1);
+    assertEquals(Arrays.asList("jvm_threads_live"), familyNames(jvm));
+    assertTrue(jvm.isCacheable());
+    MetricSelection none = new MetricSelection(Collections.emptySet(), Arrays.asList("nothing_"), "workflow", 0, 1);
+    assertTrue(familyNames(none).isEmpty());
+  }
+
+  @Test
+  public void testNames() throws Exception {
+    MetricSelection names = new MetricSelection(new HashSet<>(Arrays.asList("workflow_count_total")),
+        Collections.emptyList(), "workflow", 0, 1);
+    assertEquals(Arrays.asList("workflow_count"), familyNames(names));
+    assertFalse(names.isCacheable());
+  }
+
+  @Test
+  public void testShards() throws Exception {
+    int shards = 4;
+    Set<String> seen = new HashSet<>();
+    for (int shard = 0; shard < shards; shard++) {
+      MetricSelection selection = new MetricSelection(Collections.emptySet(), Collections.emptyList(), "workflow", shard, shards);
+      List<String> workflows = workflows(selection);
+      // Not exactly even, but nobody gets everything.
+      assertTrue(workflows.size() > 0 && workflows.size() < WORKFLOWS);
+      seen.addAll(workflows);
+      // Unsharded series only go to the first shard.
+      assertEquals(shard == 0, familyNames(selection).contains("jvm_threads_live"));
+      assertNotEquals(selection.cacheKey(), MetricSelection.EVERYTHING.cacheKey());
+    }
+    assertEquals(WORKFLOWS, seen.size());
+  }
+
+  @Test
+  public void testShardOf_Consistent() throws Exception {
+    int moved = 0;
+    for (int i = 0; i < 1000; i++) {
+      int before = MetricSelection.shardOf("workflow-" + i, 4);
+      int after = MetricSelection.shardOf("workflow-" + i, 5);
+      assertEquals(before, MetricSelection.shardOf("workflow-" + i, 4));
+      if (before != after) {
+        // Anything that moves, only moves to the new shard.
+        assertEquals(4, after);
+        moved++;
+      }
+    }
+    // About 1/5 should move.
+    assertTrue(moved > 100 && moved < 300);
+    assertEquals(0, MetricSelection.shardOf(null, 4));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidShard() throws Exception {
+    new MetricSelection(Collections.emptySet(), Collections.emptyList(), "workflow", 2, 2);
+  }
+
+  private List<String> familyNames(MetricSelection selection) {
+    List<String> result = new ArrayList<>();
+    Collections.list(selection.select(registry.getPrometheusRegistry())).forEach(f -> result.add(f.name));
+    Collections.sort(result);
+    return result;
+  }
+
+  private List<String> workflows(MetricSelection selection) {
+    List<String> result = new ArrayList<>();
+    for (MetricFamilySamples family : Collections.list(selection.select(registry.getPrometheusRegistry()))) {
+      for (Sample sample : family.samples) {
+        int index = sample.labelNames.indexOf("workflow");
+        if (index >= 0) {
+          result.add(sample.labelValues.get(index));
+        }
+      }
+    }
+    return result;
+  }
+}
@@ -1,10 +1,20 @@
 package com.adaptris.rest;
 
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 
+import org.awaitility.Durations;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -58,6 +68,8 @@ public class PrometheusEndpointComponentTest {
 
     assertFalse(mockConsumer.isError);
     assertTrue(mockConsumer.payload.contains("test_metric"));
+    assertEquals("Accept, Accept-Encoding",
+        WorkflowServicesConsumer.getResponseHeader(message, WorkflowServicesConsumer.HEADER_VARY));
   }
 
   @Test
@@ -78,6 +90,304 @@ public class PrometheusEndpointComponentTest {
     assertTrue(mockConsumer.httpStatus == 500);
   }
 
+  @Test
+  public void testBackgroundRefresh() throws Exception {
+    CountingMetricProvider provider = new CountingMetricProvider();
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(provider);
+    PrometheusEndpointComponent background = start(config("rest.prometheus.refresh-ms", "60000"));
+    try {
+      await().atMost(Durations.FIVE_SECONDS).until(() -> background.getRefreshes().get() >= 1);
+      for (int i = 0; i < 3; i++) {
+        background.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+        assertFalse(mockConsumer.isError);
+        assertTrue(mockConsumer.payload.contains("test_metric"));
+      }
+      // Scrapes just read the registry.
+      assertEquals(1, provider.binds.get());
+    } finally {
+      background.stop();
+      background.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testConcurrentScrapesShareRefresh() throws Exception {
+    CountingMetricProvider provider = new CountingMetricProvider();
+    provider.latch = new CountDownLatch(1);
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(provider);
+    try {
+      Thread first = new Thread(() -> component.refresh());
+      first.start();
+      await().atMost(Durations.FIVE_SECONDS).until(() -> provider.binds.get() == 1);
+      Thread second = new Thread(() -> component.onAdaptrisMessage(message));
+      second.start();
+      second.join(200);
+      assertTrue(second.isAlive());
+      provider.latch.countDown();
+      first.join(5000);
+      second.join(5000);
+      assertFalse(second.isAlive());
+      assertEquals(1, provider.binds.get());
+      assertEquals(1, component.getRefreshes().get());
+      assertTrue(mockConsumer.payload.contains("test_metric"));
+    } finally {
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testCached() throws Exception {
+    CountingMetricProvider provider = new CountingMetricProvider();
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(provider);
+    PrometheusEndpointComponent cached = start(config("rest.prometheus.cache-ms", "60000"));
+    try {
+      for (int i = 0; i < 3; i++) {
+        AdaptrisMessage msg = DefaultMessageFactory.getDefaultInstance().newMessage();
+        cached.onAdaptrisMessage(msg);
+        assertFalse(mockConsumer.isError);
+        assertTrue(mockConsumer.payload.contains("test_metric"));
+        assertFalse(msg.headersContainsKey(WorkflowServicesConsumer.RESPONSE_HEADER_PREFIX + WorkflowServicesConsumer.HEADER_CONTENT_ENCODING));
+      }
+      assertEquals(1, cached.getRenders().get());
+      assertEquals(1, provider.binds.get());
+
+      AdaptrisMessage msg = DefaultMessageFactory.getDefaultInstance().newMessage();
+      msg.addMessageHeader("http.header.Accept-Encoding", "gzip, deflate");
+      cached.onAdaptrisMessage(msg);
+      assertEquals("gzip", WorkflowServicesConsumer.getResponseHeader(msg, WorkflowServicesConsumer.HEADER_CONTENT_ENCODING));
+      assertEquals("Accept, Accept-Encoding",
+          WorkflowServicesConsumer.getResponseHeader(msg, WorkflowServicesConsumer.HEADER_VARY));
+      try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(msg.getPayload()))) {
+        assertTrue(IOUtils.toString(in, StandardCharsets.UTF_8).contains("test_metric"));
+      }
+      assertEquals(1, cached.getRenders().get());
+    } finally {
+      cached.stop();
+      cached.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testCacheExpires() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    PrometheusEndpointComponent cached = start(config("rest.prometheus.cache-ms", "0"));
+    try {
+      cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+      cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+      assertEquals(2, cached.getRenders().get());
+    } finally {
+      cached.stop();
+      cached.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testCacheFollowsRefresh() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    Properties config = config("rest.prometheus.cache-ms", "60000");
+    config.setProperty("rest.prometheus.refresh-ms", "60000");
+    PrometheusEndpointComponent cached = start(config);
+    try {
+      await().atMost(Durations.FIVE_SECONDS).until(() -> cached.getRefreshes().get() >= 1);
+      cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+      cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+      assertEquals(1, cached.getRenders().get());
+      cached.refresh();
+      cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+      assertEquals(2, cached.getRenders().get());
+    } finally {
+      cached.stop();
+      cached.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testOpenMetrics() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    try {
+      component.onAdaptrisMessage(message);
+      assertTrue(mockConsumer.contentType.startsWith("text/plain; version=0.0.4"));
+      assertFalse(mockConsumer.payload.contains("# EOF"));
+
+      AdaptrisMessage msg = DefaultMessageFactory.getDefaultInstance().newMessage();
+      msg.addMessageHeader("http.header.Accept", "application/openmetrics-text; version=1.0.0,text/plain;q=0.5");
+      component.onAdaptrisMessage(msg);
+      assertFalse(mockConsumer.isError);
+      assertTrue(mockConsumer.contentType.startsWith("application/openmetrics-text"));
+      assertTrue(mockConsumer.payload.contains("test_metric"));
+      assertTrue(mockConsumer.payload.endsWith("# EOF\n"));
+    } finally {
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testSelectedNames() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    MetricProviders.getProviders().add(registry -> Gauge.builder("other-metric", () -> 1).register(registry));
+    PrometheusEndpointComponent cached = start(config("rest.prometheus.cache-ms", "60000"));
+    try {
+      AdaptrisMessage msg = DefaultMessageFactory.getDefaultInstance().newMessage();
+      msg.addMessageHeader("http.param.name[]", "test_metric");
+      cached.onAdaptrisMessage(msg);
+      assertFalse(mockConsumer.isError);
+      assertTrue(mockConsumer.payload.contains("test_metric"));
+      assertFalse(mockConsumer.payload.contains("other_metric"));
+      // Selections aren't cached.
+      assertEquals(0, cached.getRenders().get());
+
+      cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+      assertTrue(mockConsumer.payload.contains("test_metric"));
+      assertTrue(mockConsumer.payload.contains("other_metric"));
+    } finally {
+      cached.stop();
+      cached.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testCachedByContentType() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    PrometheusEndpointComponent cached = start(config("rest.prometheus.cache-ms", "60000"));
+    try {
+      for (int i = 0; i < 2; i++) {
+        cached.onAdaptrisMessage(DefaultMessageFactory.getDefaultInstance().newMessage());
+        assertFalse(mockConsumer.payload.contains("# EOF"));
+        AdaptrisMessage msg = DefaultMessageFactory.getDefaultInstance().newMessage();
+        msg.addMessageHeader("http.header.Accept", "application/openmetrics-text; version=1.0.0");
+        cached.onAdaptrisMessage(msg);
+        assertTrue(mockConsumer.payload.endsWith("# EOF\n"));
+      }
+      assertEquals(2, cached.getRenders().get());
+    } finally {
+      cached.stop();
+      cached.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testGroup() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    MetricProviders.getProviders().add(registry -> Gauge.builder("jvm.threads.live", () -> 1).register(registry));
+    PrometheusEndpointComponent grouped = start(config("rest.prometheus.group.test", "test_, other_"));
+    try {
+      grouped.onAdaptrisMessage(scrape("/prometheus/metrics/jvm"));
+      assertFalse(mockConsumer.isError);
+      assertTrue(mockConsumer.payload.contains("jvm_threads_live"));
+      assertFalse(mockConsumer.payload.contains("test_metric"));
+
+      grouped.onAdaptrisMessage(scrape("/prometheus/metrics/test/"));
+      assertFalse(mockConsumer.payload.contains("jvm_threads_live"));
+      assertTrue(mockConsumer.payload.contains("test_metric"));
+
+      grouped.onAdaptrisMessage(scrape("/prometheus/metrics/"));
+      assertTrue(mockConsumer.payload.contains("jvm_threads_live"));
+      assertTrue(mockConsumer.payload.contains("test_metric"));
+
+      grouped.onAdaptrisMessage(scrape("/prometheus/metrics/missing"));
+      assertTrue(mockConsumer.isError);
+      assertEquals(404, mockConsumer.httpStatus);
+    } finally {
+      grouped.stop();
+      grouped.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testSharded() throws Exception {
+    MetricProviders.getProviders().clear();
+    MetricProviders.getProviders().add(new MockMetricProvider());
+    MetricProviders.getProviders().add(registry -> {
+      for (int i = 0; i < 10; i++) {
+        Gauge.builder("workflow.count", () -> 1).tag("workflow", "workflow-" + i).register(registry);
+      }
+    });
+    Properties config = config("rest.prometheus.cache-ms", "60000");
+    config.setProperty("rest.prometheus.shards", "2");
+    config.setProperty("rest.prometheus.max-shards", "4");
+    PrometheusEndpointComponent cached = start(config);
+    try {
+      int series = 0;
+      for (int shard = 0; shard < 2; shard++) {
+        AdaptrisMessage msg = scrape("/prometheus/metrics/");
+        msg.addMessageHeader("http.param.shard", String.valueOf(shard));
+        msg.addMessageHeader("http.param.shards", "2");
+        cached.onAdaptrisMessage(msg);
+        assertFalse(mockConsumer.isError);
+        assertEquals(shard == 0, mockConsumer.payload.contains("test_metric"));
+        series += StringUtils.countMatches(mockConsumer.payload, "workflow_count{");
+      }
+      assertEquals(10, series);
+      // Each shard is cached separately.
+      assertEquals(2, cached.getRenders().get());
+
+      // Not a shard count that we were told about, so it isn't cached.
+      for (int i = 0; i < 2; i++) {
+        AdaptrisMessage msg = scrape("/prometheus/metrics/");
+        msg.addMessageHeader("http.param.shard", "0");
+        msg.addMessageHeader("http.param.shards", "3");
+        cached.onAdaptrisMessage(msg);
+        assertFalse(mockConsumer.isError);
+      }
+      assertEquals(2, cached.getRenders().get());
+
+      AdaptrisMessage msg = scrape("/prometheus/metrics/");
+      msg.addMessageHeader("http.param.shard", "2");
+      msg.addMessageHeader("http.param.shards", "2");
+      cached.onAdaptrisMessage(msg);
+      assertTrue(mockConsumer.isError);
+      assertEquals(400, mockConsumer.httpStatus);
+    } finally {
+      cached.stop();
+      cached.destroy();
+      MetricProviders.getProviders().clear();
+    }
+  }
+
+  @Test
+  public void testSharded_Invalid() throws Exception {
+    PrometheusEndpointComponent cached = start(config("rest.prometheus.max-shards", "4"));
+    try {
+      AdaptrisMessage msg = scrape("/prometheus/metrics/");
+      msg.addMessageHeader("http.param.shard", "1");
+      cached.onAdaptrisMessage(msg);
+      assertTrue(mockConsumer.isError);
+      assertEquals(400, mockConsumer.httpStatus);
+
+      msg = scrape("/prometheus/metrics/");
+      msg.addMessageHeader("http.param.shards", "2");
+      cached.onAdaptrisMessage(msg);
+      assertTrue(mockConsumer.isError);
+      assertEquals(400, mockConsumer.httpStatus);
+
+      msg = scrape("/prometheus/metrics/");
+      msg.addMessageHeader("http.param.shard", "0");
+      msg.addMessageHeader("http.param.shards", "5");
+      cached.onAdaptrisMessage(msg);
+      assertTrue(mockConsumer.isError);
+      assertEquals(400, mockConsumer.httpStatus);
+    } finally {
+      cached.stop();
+      cached.destroy();
+    }
+  }
+
   @Test
   public void testDebugLogging() throws Exception {
     component.exceptionLogging(true, "hello", new Exception());
@@ -100,6 +410,40 @@ public class PrometheusEndpointComponentTest {
     }
   }
 
+  private static Properties config(String key, String value) {
+    Properties config = new Properties();
+    config.setProperty(key, value);
+    return config;
+  }
+
+  private static AdaptrisMessage scrape(String path) {
+    AdaptrisMessage msg = DefaultMessageFactory.getDefaultInstance().newMessage();
+    msg.addMessageHeader("jettyURI", path);
+    return msg;
+  }
+
+  private PrometheusEndpointComponent start(Properties config) throws Exception {
+    PrometheusEndpointComponent result = new PrometheusEndpointComponent();
+    result.setConsumer(mockConsumer);
+    result.init(config);
+    result.start();
+    return result;
+  }
+
+  class CountingMetricProvider extends MockMetricProvider {
+    AtomicInteger binds = new AtomicInteger();
+    CountDownLatch latch;
+
+    @Override
+    public void bindTo(MeterRegistry registry) throws Exception {
+      binds.incrementAndGet();
+      if (latch != null) {
+        latch.await();
+      }
+      super.bindTo(registry);
+    }
+  }
+
   class MockFailingMetricProvider implements MetricBinder {
 
     @Override